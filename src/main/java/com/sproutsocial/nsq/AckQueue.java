@@ -0,0 +1,88 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue of FIN, REQ and TOUCH commands, many handler threads offer and one writer
+ * (holding the connection lock) drains. Entries are stored in preallocated arrays so offering doesn't allocate.
+ * A slot is published by storing its sequence number + 1 after the entry is written.
+ */
+@ThreadSafe
+class AckQueue {
+
+    static final byte FIN = 0;
+    static final byte REQ = 1;
+    static final byte TOUCH = 2;
+
+    private final int mask;
+    private final byte[] types;
+    private final long[] idHighs;
+    private final long[] idLows;
+    private final int[] numbers;
+    private final AtomicLongArray published;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0; //only written by the draining thread
+
+    AckQueue(int capacity) {
+        Util.checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1);
+        mask = capacity - 1;
+        types = new byte[capacity];
+        idHighs = new long[capacity];
+        idLows = new long[capacity];
+        numbers = new int[capacity];
+        published = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * @return false if the queue is full
+     */
+    boolean offer(byte type, long idHigh, long idLow, int number) {
+        while (true) {
+            long seq = tail.get();
+            if (seq - head > mask) {
+                return false;
+            }
+            if (tail.compareAndSet(seq, seq + 1)) {
+                int index = (int) seq & mask;
+                types[index] = type;
+                idHighs[index] = idHigh;
+                idLows[index] = idLow;
+                numbers[index] = number;
+                published.lazySet(index, seq + 1);
+                return true;
+            }
+        }
+    }
+
+    int size() {
+        return (int) (tail.get() - head);
+    }
+
+    /**
+     * Writes every published entry in order, must only be called by one thread at a time.
+     * @return the number of entries written
+     */
+    int drainTo(SubConnection con) throws IOException {
+        long seq = head;
+        int count = 0;
+        while (true) {
+            int index = (int) seq & mask;
+            if (published.get(index) != seq + 1) {
+                break; //empty, or the next entry is still being written
+            }
+            byte type = types[index];
+            long idHigh = idHighs[index];
+            long idLow = idLows[index];
+            int number = numbers[index];
+            head = ++seq; //frees the slot
+            con.writeAck(type, idHigh, idLow, number);
+            count++;
+        }
+        return count;
+    }
+
+}
@@ -51,6 +51,10 @@ public class BackoffHandler implements MessageHandler {
         }
     }
 
+    boolean isBackoff() {
+        return isBackoff;
+    }
+
     synchronized void setSubscription(Subscription subscription) {
         this.subscription = subscription;
     }
@@ -0,0 +1,13 @@
+package com.sproutsocial.nsq;
+
+import java.util.List;
+
+/**
+ * Receives messages in batches, see Subscriber.subscribe(String, String, int, int, BatchMessageHandler).
+ * The handler must finish or requeue every message, Messages.finishAll does it with one write per connection.
+ */
+public interface BatchMessageHandler {
+
+    void accept(List<Message> messages);
+
+}
@@ -1,105 +1,213 @@
 package com.sproutsocial.nsq;
 
+import net.jcip.annotations.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.sproutsocial.nsq.Util.checkArgument;
 import static com.sproutsocial.nsq.Util.checkNotNull;
 
+/**
+ * Collects messages for one topic and sends them with MPUB.
+ * Publishing threads append to a lock-free queue. The thread whose message fills a batch to maxSize bytes
+ * sends it, so a failed send is thrown to a publishing thread. Batches that don't fill up are sent by
+ * the batch executor maxDelayMillis after their first message.
+ * <p>
+ * With a target latency, maxSize and maxDelayMillis are tuned after every batch from the publish rate
+ * and MPUB response time: the delay is whatever the target leaves after the response time, and the size
+ * is what arrives in that delay. Topics too quiet to fill a batch in time are sent after a short delay.
+ */
+@ThreadSafe
 class Batcher {
 
     private final Publisher publisher;
     private final String topic;
-    private final int maxSize;
-    private final int maxDelayMillis;
+    private volatile int maxSize;
+    private volatile int maxDelayMillis;
+    private final int maxSizeLimit;
+    private final int targetLatencyMillis;
+    private final Ewma byteRate = new Ewma(1, TimeUnit.SECONDS);
+    private final Ewma ackMillis = new Ewma(1, TimeUnit.SECONDS);
+    private long lastSendNanos = System.nanoTime();
     private final ScheduledExecutorService executor;
-    private int size;
-    private List<byte[]> batch = new ArrayList<byte[]>();
-    private long sendTime;
+    private final Queue<byte[]> queue = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean isDelayScheduled = new AtomicBoolean();
+    private volatile int lastBatchCount = 10;
+
+    static final int MIN_ADAPTIVE_SIZE = 1024;
+    static final int MIN_ADAPTIVE_DELAY_MILLIS = 10;
 
     private static final Logger logger = LoggerFactory.getLogger(Batcher.class);
 
     public Batcher(Publisher publisher, String topic, int maxSizeBytes, int maxDelayMillis) {
+        this(publisher, topic, maxSizeBytes, maxDelayMillis, 0);
+    }
+
+    /**
+     * @param maxSizeBytes with a target latency, the largest batch the size can grow to
+     * @param maxDelayMillis with a target latency, the delay until the first batch is sent
+     * @param targetLatencyMillis 0 to always use maxSizeBytes and maxDelayMillis
+     */
+    public Batcher(Publisher publisher, String topic, int maxSizeBytes, int maxDelayMillis, int targetLatencyMillis) {
         this.publisher = publisher;
         this.topic = topic;
         this.maxSize = maxSizeBytes;
+        this.maxSizeLimit = maxSizeBytes;
         this.maxDelayMillis = maxDelayMillis;
+        this.targetLatencyMillis = targetLatencyMillis;
         this.executor = publisher.getBatchExecutor();
         checkNotNull(publisher);
         checkNotNull(topic);
         checkArgument(maxDelayMillis > 5);
         checkArgument(maxDelayMillis <= 60000);
         checkArgument(maxSize > 100);
+        checkArgument(targetLatencyMillis == 0 || targetLatencyMillis > MIN_ADAPTIVE_DELAY_MILLIS);
     }
 
     public void publish(byte[] msg) {
-        boolean sendNow = false;
-        synchronized (this) {
-            batch.add(msg);
-            size += msg.length;
-            if (batch.size() == 1) {
-                sendTime = Util.clock() + maxDelayMillis;
-                executor.schedule(new Runnable() {
-                    public void run() {
-                        sendDelayedBatch();
-                    }
-                }, maxDelayMillis, TimeUnit.MILLISECONDS);
-            }
-            else if (size >= maxSize) {
-                sendNow = true;
-            }
+        if (!publisher.reserveBuffer(this, msg.length)) {
+            return;
         }
-        if (sendNow) {
-            sendBatch();
+        queue.add(msg);
+        int newSize = size.addAndGet(msg.length);
+        int max = maxSize;
+        if (newSize >= max && newSize - msg.length < max) {
+            sendFullBatches();
+        }
+        else if (isDelayScheduled.compareAndSet(false, true)) {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    sendDelayedBatch();
+                }
+            }, maxDelayMillis, TimeUnit.MILLISECONDS);
         }
     }
 
     private void sendDelayedBatch() {
         try {
-            boolean sendNow = false;
-            synchronized (this) {
-                if (!batch.isEmpty()) {
-                    long delay = sendTime - Util.clock();
-                    if (delay < 50) {
-                        sendNow = true;
-                    }
-                    else {
-                        executor.schedule(new Runnable() {
-                            public void run() {
-                                sendDelayedBatch();
-                            }
-                        }, delay, TimeUnit.MILLISECONDS);
-                    }
-                }
-            }
-            if (sendNow) {
-                sendBatch();
-            }
+            //cleared before draining, messages added after this schedule another delayed send
+            isDelayScheduled.set(false);
+            sendBatch();
         }
         catch (Throwable t) {
             logger.error("delayed batch error. messages possibly lost", t);
         }
     }
 
-    void sendBatch() {
-        List<byte[]> toSend = null;
-        synchronized (this) {
-            if (!batch.isEmpty()) {
-                toSend = batch;
-                int capacity = Math.min(maxSize, (int) (toSend.size() * 1.2));
-                capacity = Math.max(10, capacity);
-                batch = new ArrayList<byte[]>(capacity);
-                size = 0;
+    private void sendFullBatches() {
+        while (size.get() >= maxSize) {
+            List<byte[]> batch = drain();
+            if (batch == null) {
+                break;
             }
+            send(batch);
+        }
+    }
+
+    /**
+     * Sends everything waiting, in batches of up to maxSize bytes.
+     */
+    void sendBatch() {
+        List<byte[]> batch = drain();
+        while (batch != null) {
+            send(batch);
+            batch = drain();
+        }
+    }
+
+    //the batch counts against the publisher buffer limit until the publish returns
+    private void send(List<byte[]> batch) {
+        int bytes = 0;
+        for (byte[] msg : batch) {
+            bytes += msg.length;
+        }
+        long start = System.nanoTime();
+        try {
+            publisher.publish(topic, batch);
+        }
+        finally {
+            publisher.releaseBuffer(bytes);
+        }
+        if (targetLatencyMillis > 0) {
+            adapt(bytes, start, System.nanoTime());
+        }
+    }
+
+    /**
+     * Discards the oldest waiting messages until at least the given bytes are freed or nothing is waiting.
+     * @return the bytes freed
+     */
+    long dropOldest(long bytes) {
+        long freed = 0;
+        int count = 0;
+        byte[] msg;
+        while (freed < bytes && (msg = queue.poll()) != null) {
+            freed += msg.length;
+            count++;
+        }
+        if (count > 0) {
+            size.addAndGet((int) -freed);
+            publisher.releaseBuffer(freed);
+            publisher.addDropped(count);
+        }
+        return freed;
+    }
+
+    /**
+     * @return bytes of messages waiting to be sent
+     */
+    int getBufferedBytes() {
+        return size.get();
+    }
+
+    private synchronized void adapt(int bytes, long start, long end) {
+        //the batch arrived since the previous send started
+        byteRate.update(bytes * 1e9 / Math.max(start - lastSendNanos, 1000000));
+        lastSendNanos = start;
+        ackMillis.update((end - start) / 1e6);
+
+        int delay = (int) Math.max(MIN_ADAPTIVE_DELAY_MILLIS, targetLatencyMillis - ackMillis.get());
+        double expectedBytes = byteRate.get() * delay / 1000;
+        if (expectedBytes < MIN_ADAPTIVE_SIZE) {
+            //waiting won't fill a batch, it only adds latency
+            delay = MIN_ADAPTIVE_DELAY_MILLIS;
+        }
+        maxDelayMillis = delay;
+        maxSize = (int) Math.min(Math.max(expectedBytes, MIN_ADAPTIVE_SIZE), maxSizeLimit);
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    int getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    private List<byte[]> drain() {
+        List<byte[]> batch = new ArrayList<byte[]>(Math.max(10, (int) (lastBatchCount * 1.2)));
+        int batchSize = 0;
+        byte[] msg;
+        while (batchSize < maxSize && (msg = queue.poll()) != null) {
+            batch.add(msg);
+            batchSize += msg.length;
         }
-        if (toSend != null) {
-            publisher.publish(topic, toSend);
+        if (batch.isEmpty()) {
+            return null;
         }
+        size.addAndGet(-batchSize);
+        lastBatchCount = batch.size();
+        return batch;
     }
 
 }
@@ -0,0 +1,170 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sproutsocial.nsq.Util.checkArgument;
+
+/**
+ * Reuses message body buffers, set with Subscriber.setBodyPool.
+ * Buffers are kept in power of two size classes from 256 bytes to 1MB, larger bodies are allocated for each message.
+ * A body goes back to the pool when the message is finished, requeued or released, whichever is first,
+ * and its reference count (see Messages.retain) reaches zero.
+ * <p>
+ * Leak detection follows every leakSampleInterval-th message, if it is garbage collected without being released
+ * a warning is logged and getLeakCount is incremented.
+ */
+@ThreadSafe
+public class BodyPool {
+
+    private final boolean isDirect;
+    private final ArrayBlockingQueue<ByteBuffer>[] classes;
+    private final ReferenceQueue<PooledMessage> collected = new ReferenceQueue<PooledMessage>();
+    private final Set<Tracker> tracked = Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+    private final AtomicLong acquireCount = new AtomicLong();
+    private final AtomicLong reuseCount = new AtomicLong();
+    private final AtomicLong leakCount = new AtomicLong();
+    private volatile int leakSampleInterval = 128;
+
+    private static final int MIN_CLASS_SHIFT = 8;
+    private static final int MAX_CLASS_SHIFT = 20;
+
+    private static final Logger logger = LoggerFactory.getLogger(BodyPool.class);
+
+    /**
+     * @param maxPooledBytes memory kept for reuse, split evenly between the size classes
+     * @param isDirect allocate direct buffers instead of heap buffers
+     */
+    public BodyPool(long maxPooledBytes, boolean isDirect) {
+        checkArgument(maxPooledBytes > 0);
+        this.isDirect = isDirect;
+        int count = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayBlockingQueue<ByteBuffer>[] queues = new ArrayBlockingQueue[count];
+        for (int i = 0; i < count; i++) {
+            long capacity = maxPooledBytes / count / (1 << (MIN_CLASS_SHIFT + i));
+            queues[i] = new ArrayBlockingQueue<ByteBuffer>((int) Math.max(1, Math.min(capacity, 65536)));
+        }
+        classes = queues;
+    }
+
+    public BodyPool() {
+        this(16 * 1024 * 1024, false);
+    }
+
+    /**
+     * @return a buffer with position 0 and limit length, pooled if length fits a size class
+     */
+    ByteBuffer acquire(int length) {
+        acquireCount.incrementAndGet();
+        int index = sizeClass(length);
+        ByteBuffer buf = index < 0 ? null : classes[index].poll();
+        if (buf == null) {
+            buf = allocate(index < 0 ? length : 1 << (MIN_CLASS_SHIFT + index));
+        }
+        else {
+            reuseCount.incrementAndGet();
+        }
+        buf.clear();
+        buf.limit(length);
+        return buf;
+    }
+
+    void release(ByteBuffer buf) {
+        int index = sizeClass(buf.capacity());
+        if (index >= 0 && buf.capacity() == 1 << (MIN_CLASS_SHIFT + index)) {
+            classes[index].offer(buf); //dropped if the class is full
+        }
+    }
+
+    //tracks a sample of messages, returns null for the rest
+    Tracker track(PooledMessage msg, String topic) {
+        reportLeaks();
+        int interval = leakSampleInterval;
+        if (interval <= 0 || acquireCount.get() % interval != 0) {
+            return null;
+        }
+        Tracker tracker = new Tracker(msg, topic, collected, tracked);
+        tracked.add(tracker);
+        return tracker;
+    }
+
+    private void reportLeaks() {
+        Reference<? extends PooledMessage> ref;
+        while ((ref = collected.poll()) != null) {
+            Tracker tracker = (Tracker) ref;
+            if (tracked.remove(tracker)) {
+                leakCount.incrementAndGet();
+                logger.warn("message body leak, a message was garbage collected without finish, requeue or release. topic:{}", tracker.topic);
+            }
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int sizeClass(int length) {
+        if (length > 1 << MAX_CLASS_SHIFT) {
+            return -1;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1); //round up to a power of two
+        return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+
+    public boolean isDirect() {
+        return isDirect;
+    }
+
+    /**
+     * Follow one in this many messages for leak detection, 0 turns it off. Default 128.
+     */
+    public void setLeakSampleInterval(int leakSampleInterval) {
+        checkArgument(leakSampleInterval >= 0);
+        this.leakSampleInterval = leakSampleInterval;
+    }
+
+    public int getLeakSampleInterval() {
+        return leakSampleInterval;
+    }
+
+    public long getLeakCount() {
+        reportLeaks();
+        return leakCount.get();
+    }
+
+    /**
+     * @return fraction of bodies that reused a pooled buffer
+     */
+    public double getReuseRate() {
+        long acquired = acquireCount.get();
+        return acquired == 0 ? 0 : (double) reuseCount.get() / acquired;
+    }
+
+    static class Tracker extends WeakReference<PooledMessage> {
+        private final String topic;
+        private final Set<Tracker> tracked;
+
+        Tracker(PooledMessage msg, String topic, ReferenceQueue<PooledMessage> queue, Set<Tracker> tracked) {
+            super(msg, queue);
+            this.topic = topic;
+            this.tracked = tracked;
+        }
+
+        void released() {
+            tracked.remove(this);
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.sproutsocial.nsq;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking writes to a non-blocking channel that is read by a NioReader.
+ * Callers are synchronized by the owning connection. When the socket buffer is full
+ * the write waits on a private selector, up to timeoutMillis.
+ */
+class ChannelOutputStream extends OutputStream {
+
+    private final SocketChannel channel;
+    private final int timeoutMillis;
+    private Selector writeSelector;
+
+    ChannelOutputStream(SocketChannel channel, int timeoutMillis) {
+        this.channel = channel;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+        while (buf.hasRemaining()) {
+            if (channel.write(buf) == 0) {
+                awaitWritable();
+            }
+        }
+    }
+
+    /**
+     * Sends count bytes of the file starting at position with FileChannel.transferTo, which the OS can do
+     * without copying them through the heap. The file position is not changed.
+     */
+    void transferFrom(FileChannel src, long position, long count) throws IOException {
+        if (position + count > src.size()) {
+            //transferTo returns 0 past the end of the file, same as for a full socket buffer
+            throw new EOFException("file ended with " + (position + count - src.size()) + " of " + count + " bytes left");
+        }
+        long pos = position;
+        long end = position + count;
+        while (pos < end) {
+            long len = src.transferTo(pos, end - pos, channel);
+            if (len == 0) {
+                awaitWritable();
+            }
+            pos += len;
+        }
+    }
+
+    private void awaitWritable() throws IOException {
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+        if (writeSelector.select(timeoutMillis) == 0) {
+            throw new SocketTimeoutException("write timed out");
+        }
+        writeSelector.selectedKeys().clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        }
+        finally {
+            if (writeSelector != null) {
+                writeSelector.close();
+            }
+        }
+    }
+
+}
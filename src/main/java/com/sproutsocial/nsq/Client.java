@@ -28,6 +28,9 @@ public class Client {
     private ExecutorService handlerExecutor;
     private SSLSocketFactory sslSocketFactory;
     private byte[] authSecret;
+    private ThreadFactory readThreadFactory;
+    private NioReader[] nioReaders = new NioReader[0];
+    private int nextNioReader = 0;
 
     private static final Logger logger = LoggerFactory.getLogger(Client.class);
     private static final Client defaultClient = new Client();
@@ -113,6 +116,42 @@ public class Client {
         return handlerExecutor;
     }
 
+    /**
+     * Read all connections opened after this call with a fixed number of selector threads,
+     * instead of starting a blocking read thread for each connection. 0 (the default) uses a thread per connection.
+     * Connections using tls, snappy or deflate always use their own read thread.
+     */
+    public synchronized void setNioReadThreads(int threads) {
+        checkArgument(threads >= 0);
+        nioReaders = new NioReader[threads];
+        for (int i = 0; i < threads; i++) {
+            nioReaders[i] = new NioReader();
+        }
+    }
+
+    public synchronized int getNioReadThreads() {
+        return nioReaders.length;
+    }
+
+    /**
+     * Creates the read thread of each connection opened after this call, null (the default) uses platform threads named nsq-read.
+     * On java 21 and up the read loops can run on virtual threads with {@code Thread.ofVirtual().name("nsq-read-", 0).factory()},
+     * message handlers too with {@code setExecutor(Executors.newVirtualThreadPerTaskExecutor())}.
+     * <p>
+     * Reading messages and acking them don't take the connection lock, acks are written and flushed by the client
+     * scheduler, heartbeats are answered there too. Connections still use synchronized blocks that flush the socket,
+     * so before java 24 a virtual thread pins its carrier while it waits for them:
+     * when a handler changes RDY (setMaxInFlight, BackoffHandler), when a handler acks while 4096 acks are queued,
+     * and for publishes.
+     */
+    public synchronized void setReadThreadFactory(ThreadFactory readThreadFactory) {
+        this.readThreadFactory = readThreadFactory;
+    }
+
+    public synchronized ThreadFactory getReadThreadFactory() {
+        return readThreadFactory;
+    }
+
     public synchronized SSLSocketFactory getSSLSocketFactory() {
         return sslSocketFactory;
     }
@@ -190,6 +229,14 @@ public class Client {
         }
     }
 
+    synchronized NioReader nextNioReader() {
+        if (nioReaders.length == 0) {
+            return null;
+        }
+        nextNioReader = (nextNioReader + 1) % nioReaders.length;
+        return nioReaders[nextNioReader];
+    }
+
     Gson getGson() {
         return gson;
     }
@@ -10,6 +10,9 @@ import java.lang.management.ManagementFactory;
 import java.lang.reflect.Constructor;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -37,6 +40,14 @@ abstract class Connection extends BasePubSub implements Closeable {
     protected long lastActionFlush; //time the last action was flushed (NOP does not count)
     protected int unflushedCount;
     protected long lastHeartbeat;
+    @GuardedBy("this")
+    private final byte[] intBytes = new byte[4];
+    @GuardedBy("this")
+    private byte[] copyChunk;
+    @GuardedBy("this")
+    private ChannelOutputStream channelOut; //plain tcp on a selector, files are sent with transferTo
+    @GuardedBy("this")
+    private final byte[] commandBytes = new byte[64];
 
     protected final BlockingQueue<String> respQueue = new ArrayBlockingQueue<String>(1);
     protected final ExecutorService handlerExecutor;
@@ -55,7 +66,11 @@ abstract class Connection extends BasePubSub implements Closeable {
 
     public synchronized void connect(Config config) throws IOException {
         addClientConfig(config);
-        Socket sock = new Socket();
+        //the selector transport only handles plain tcp, tls and compression wrap the socket streams
+        NioReader reader = isTrue(config.getTlsV1()) || isTrue(config.getDeflate()) || isTrue(config.getSnappy())
+                ? null : client.nextNioReader();
+        SocketChannel channel = reader != null ? SocketChannel.open() : null;
+        Socket sock = channel != null ? channel.socket() : new Socket();
         sock.setSoTimeout(30000);
         sock.connect(new InetSocketAddress(host.getHost(), host.getPort()), 30000);
         StreamPair streams = setStreams(sock.getInputStream(), sock.getOutputStream(), new StreamPair());
@@ -75,9 +90,13 @@ abstract class Connection extends BasePubSub implements Closeable {
         wrapEncryption(serverConfig, sock, streams);
         wrapCompression(serverConfig, streams);
 
-        if (!streams.isBuffered) {
+        if (channel != null) {
+            //unbuffered until registered with the reader, so nothing is read ahead of it
+            out = new DataOutputStream(new BufferedOutputStream(streams.baseOut, getWriteBufferSize()));
+        }
+        else if (!streams.isBuffered) {
             in = new DataInputStream(new BufferedInputStream(streams.baseIn));
-            out = new DataOutputStream(new BufferedOutputStream(streams.baseOut));
+            out = new DataOutputStream(new BufferedOutputStream(streams.baseOut, getWriteBufferSize()));
         }
 
         sendAuthorization(serverConfig);
@@ -89,13 +108,24 @@ abstract class Connection extends BasePubSub implements Closeable {
         }, heartbeatInterval + 2000, heartbeatInterval, false);
         lastHeartbeat = Util.clock();
 
-        readThreadFactory.newThread(new Runnable() {
+        if (channel != null) {
+            channel.configureBlocking(false);
+            channelOut = new ChannelOutputStream(channel, heartbeatInterval);
+            out = new DataOutputStream(new BufferedOutputStream(channelOut, getWriteBufferSize()));
+            reader.register(this, channel);
+            return;
+        }
+        firstNonNull(client.getReadThreadFactory(), readThreadFactory).newThread(new Runnable() {
             public void run() {
                 read();
             }
         }).start();
     }
 
+    private static boolean isTrue(Boolean value) {
+        return value != null && value;
+    }
+
     private String connectCommand(String command, byte[] data) throws IOException {
         out.write((command + "\n").getBytes(Util.US_ASCII));
         write(data);
@@ -199,6 +229,14 @@ abstract class Connection extends BasePubSub implements Closeable {
         }
     }
 
+    /**
+     * Writes smaller than this are copied into the stream buffer and sent together,
+     * larger writes go straight to the socket.
+     */
+    protected int getWriteBufferSize() {
+        return 8192;
+    }
+
     @GuardedBy("this")
     protected void writeCommand(String cmd, Object param1, Object param2) throws IOException {
         out.write((cmd + " " + param1 + " " + param2 + "\n").getBytes(Util.US_ASCII));
@@ -209,12 +247,148 @@ abstract class Connection extends BasePubSub implements Closeable {
         out.write((cmd + " " +  param + "\n").getBytes(Util.US_ASCII));
     }
 
+    //the commands sent for every message are encoded into a reused array, verbs are pre-encoded with their trailing space
+
+    @GuardedBy("this")
+    protected void writeCommand(byte[] verb, long idHigh, long idLow) throws IOException {
+        int pos = putVerbAndId(verb, idHigh, idLow);
+        commandBytes[pos++] = '\n';
+        out.write(commandBytes, 0, pos);
+    }
+
+    @GuardedBy("this")
+    protected void writeCommand(byte[] verb, long idHigh, long idLow, int number) throws IOException {
+        int pos = putVerbAndId(verb, idHigh, idLow);
+        commandBytes[pos++] = ' ';
+        pos = putDecimal(number, pos);
+        commandBytes[pos++] = '\n';
+        out.write(commandBytes, 0, pos);
+    }
+
+    @GuardedBy("this")
+    protected void writeCommand(byte[] verb, int number) throws IOException {
+        System.arraycopy(verb, 0, commandBytes, 0, verb.length);
+        int pos = putDecimal(number, verb.length);
+        commandBytes[pos++] = '\n';
+        out.write(commandBytes, 0, pos);
+    }
+
+    @GuardedBy("this")
+    private int putVerbAndId(byte[] verb, long idHigh, long idLow) {
+        System.arraycopy(verb, 0, commandBytes, 0, verb.length);
+        MessageId.write(idHigh, idLow, commandBytes, verb.length);
+        return verb.length + MessageId.SIZE;
+    }
+
+    @GuardedBy("this")
+    private int putDecimal(int number, int pos) {
+        long value = number;
+        if (value < 0) {
+            commandBytes[pos++] = '-';
+            value = -value;
+        }
+        int end = pos;
+        for (long rest = value; rest >= 10; rest /= 10) {
+            end++;
+        }
+        for (int i = end; i >= pos; i--) {
+            commandBytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end + 1;
+    }
+
     @GuardedBy("this")
     protected void write(byte[] data) throws IOException {
-        out.writeInt(data.length);
+        writeInt(data.length);
         out.write(data);
     }
 
+    /**
+     * Writes the remaining bytes without changing the buffer position.
+     * Heap buffers are written from their array, direct buffers are copied through a reused chunk.
+     */
+    @GuardedBy("this")
+    protected void write(ByteBuffer data) throws IOException {
+        writeInt(data.remaining());
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            return;
+        }
+        byte[] chunk = getCopyChunk();
+        ByteBuffer src = data.duplicate();
+        while (src.hasRemaining()) {
+            int len = Math.min(chunk.length, src.remaining());
+            src.get(chunk, 0, len);
+            out.write(chunk, 0, len);
+        }
+    }
+
+    /**
+     * Copies length bytes from the stream through a reused chunk. If the stream fails or ends early
+     * the frame is incomplete, the caller must close the connection.
+     */
+    @GuardedBy("this")
+    protected void write(InputStream data, int length) throws IOException {
+        writeInt(length);
+        byte[] chunk = getCopyChunk();
+        int remaining = length;
+        while (remaining > 0) {
+            int len = data.read(chunk, 0, Math.min(chunk.length, remaining));
+            if (len < 0) {
+                throw new EOFException("stream ended with " + remaining + " of " + length + " bytes left");
+            }
+            out.write(chunk, 0, len);
+            remaining -= len;
+        }
+    }
+
+    /**
+     * Writes length bytes of the file starting at position, the channel position is not changed.
+     * Plain tcp connections read by a NioReader send the file with transferTo after flushing the header,
+     * tls, compressed and blocking socket connections copy it through a reused chunk.
+     */
+    @GuardedBy("this")
+    protected void write(FileChannel data, long position, int length) throws IOException {
+        writeInt(length);
+        if (channelOut != null) {
+            out.flush();
+            channelOut.transferFrom(data, position, length);
+            return;
+        }
+        ByteBuffer chunk = ByteBuffer.wrap(getCopyChunk());
+        long pos = position;
+        long end = position + length;
+        while (pos < end) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), end - pos));
+            int len = data.read(chunk, pos);
+            if (len < 0) {
+                throw new EOFException("file ended with " + (end - pos) + " of " + length + " bytes left");
+            }
+            out.write(chunk.array(), 0, len);
+            pos += len;
+        }
+    }
+
+    @GuardedBy("this")
+    private byte[] getCopyChunk() {
+        if (copyChunk == null) {
+            copyChunk = new byte[8192];
+        }
+        return copyChunk;
+    }
+
+    //one buffered write instead of DataOutputStream writing each byte separately
+    @GuardedBy("this")
+    protected void writeInt(int value) throws IOException {
+        intBytes[0] = (byte) (value >>> 24);
+        intBytes[1] = (byte) (value >>> 16);
+        intBytes[2] = (byte) (value >>> 8);
+        intBytes[3] = (byte) value;
+        out.write(intBytes, 0, 4);
+    }
+
     @GuardedBy("this")
     protected void flush() throws IOException {
         out.flush();
@@ -223,15 +397,19 @@ abstract class Connection extends BasePubSub implements Closeable {
     }
 
     private String readResponse() throws IOException {
-        int size = in.readInt();
+        return readFrame(in, in.readInt());
+    }
+
+    //also called by NioReader with a stream over one complete frame
+    String readFrame(DataInputStream in, int size) throws IOException {
         int frameType = in.readInt();
         String response = null;
 
         if (frameType == 0) {       //response
-            response = readAscii(size - 4);
+            response = readAscii(in, size - 4);
         }
         else if (frameType == 1) {  //error
-            String error = readAscii(size - 4);
+            String error = readAscii(in, size - 4);
             int index = error.indexOf(" ");
             String errorCode = index == -1 ? error : error.substring(0, index);
             if (nonFatalErrors.contains(errorCode)) {
@@ -242,7 +420,8 @@ abstract class Connection extends BasePubSub implements Closeable {
             }
         }
         else if (frameType == 2) {  //message
-            onMessage(in.readLong(), in.readUnsignedShort(), readAscii(16), readBytes(size - 30));
+            //timestamp, attempts, id as two longs, the body is read by onMessage
+            onMessage(in.readLong(), in.readUnsignedShort(), in.readLong(), in.readLong(), in, size - 30);
         }
         else {
             throw new NSQException("bad frame type:" + frameType);
@@ -254,30 +433,37 @@ abstract class Connection extends BasePubSub implements Closeable {
         try {
             while (isReading) {
                 //no need to synchronize, this is the only thread that reads after connect()
-                String response = readResponse();
-                if ("_heartbeat_".equals(response)) {
-                    //don't block this thread
-                    client.getSchedExecutor().execute(new Runnable() {
-                        public void run() {
-                            receivedHeartbeat();
-                        }
-                    });
-                }
-                else if (response != null) {
-                    respQueue.offer(response);
-                }
+                onFrame(readResponse());
             }
         }
         catch (Exception e) {
-            if (isReading) {
-                respQueue.offer(e.toString());
-                close();
-                logger.error("read thread exception. con:{}", toString(), e);
-            }
+            readFailed(e);
         }
         logger.debug("read loop done {}", toString());
     }
 
+    void onFrame(String response) {
+        if ("_heartbeat_".equals(response)) {
+            //don't block this thread
+            client.getSchedExecutor().execute(new Runnable() {
+                public void run() {
+                    receivedHeartbeat();
+                }
+            });
+        }
+        else if (response != null) {
+            onResponse(response);
+        }
+    }
+
+    void readFailed(Exception e) {
+        if (isReading) {
+            onResponse(e.toString());
+            close();
+            logger.error("read thread exception. con:{}", toString(), e);
+        }
+    }
+
     private synchronized void receivedHeartbeat() {
         try {
             out.write("NOP\n".getBytes(Util.US_ASCII));
@@ -289,18 +475,22 @@ abstract class Connection extends BasePubSub implements Closeable {
         }
     }
 
-    protected void onMessage(long timestamp, int attempts, String id, byte[] data) {
+    protected void onResponse(String response) {
+        respQueue.offer(response); //overridden by PubConnection to match pipelined responses
+    }
+
+    protected void onMessage(long timestamp, int attempts, long idHigh, long idLow, DataInputStream in, int bodySize) throws IOException {
         throw new NSQException("unexpected frame type 2 - message"); //overridden by SubConnection
     }
 
-    private byte[] readBytes(int size) throws IOException {
+    static byte[] readBytes(DataInputStream in, int size) throws IOException {
         byte[] data = new byte[size];
         in.readFully(data);
         return data;
     }
 
-    private String readAscii(int size) throws IOException {
-        return new String(readBytes(size), Util.US_ASCII);
+    private static String readAscii(DataInputStream in, int size) throws IOException {
+        return new String(readBytes(in, size), Util.US_ASCII);
     }
 
     protected void flushAndReadOK() throws IOException {
@@ -349,6 +539,10 @@ abstract class Connection extends BasePubSub implements Closeable {
         return msgTimeout;
     }
 
+    public synchronized int getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
     public synchronized long getLastActionFlush() {
         return lastActionFlush;
     }
@@ -0,0 +1,48 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exponentially weighted moving average where samples decay with time instead of sample count,
+ * so the average covers about the last decay interval regardless of how often samples arrive.
+ * The average also decays toward zero while there are no samples, stale values count for less.
+ */
+@ThreadSafe
+class Ewma {
+
+    private final double decayNanos;
+    private double value;
+    private long lastNanos;
+    private boolean hasValue = false;
+
+    Ewma(long decay, TimeUnit unit) {
+        Util.checkArgument(decay > 0);
+        this.decayNanos = unit.toNanos(decay);
+    }
+
+    synchronized void update(double sample) {
+        long now = System.nanoTime();
+        if (!hasValue) {
+            value = sample;
+            hasValue = true;
+        }
+        else {
+            double w = Math.exp(-(now - lastNanos) / decayNanos);
+            value = value * w + sample * (1 - w);
+        }
+        lastNanos = now;
+    }
+
+    /**
+     * @return the average decayed by the time since the last sample, 0 before the first sample
+     */
+    synchronized double get() {
+        if (!hasValue) {
+            return 0;
+        }
+        return value * Math.exp(-(System.nanoTime() - lastNanos) / decayNanos);
+    }
+
+}
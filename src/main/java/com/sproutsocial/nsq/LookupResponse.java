@@ -1,5 +1,14 @@
 package com.sproutsocial.nsq;
 
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.List;
 
 class LookupResponse {
@@ -7,6 +16,34 @@ class LookupResponse {
     private LookupResponse data; //older versions wrap responses in a "data" field
     private List<Producer> producers;
 
+    private static final Logger logger = LoggerFactory.getLogger(LookupResponse.class);
+
+    /**
+     * GET an nsqlookupd endpoint (/lookup or /nodes).
+     * @return the response, or null if nsqlookupd did not respond with 200
+     */
+    static LookupResponse get(Gson gson, String urlString) throws IOException {
+        BufferedReader in = null;
+        try {
+            HttpURLConnection con = (HttpURLConnection) new URL(urlString).openConnection();
+            con.setConnectTimeout(30000);
+            con.setReadTimeout(30000);
+            if (con.getResponseCode() != 200) {
+                logger.debug("ignoring lookup resp:{} url:{}", con.getResponseCode(), urlString);
+                return null;
+            }
+            in = new BufferedReader(new InputStreamReader(con.getInputStream()));
+            LookupResponse resp = gson.fromJson(in, LookupResponse.class);
+            if (resp.getData() != null) {
+                resp = resp.getData(); //nsq before version 1.0 wrapped the response with status_code/data
+            }
+            return resp;
+        }
+        finally {
+            Util.closeQuietly(in);
+        }
+    }
+
     public LookupResponse getData() {
         return data;
     }
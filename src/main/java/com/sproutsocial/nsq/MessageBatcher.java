@@ -0,0 +1,133 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.sproutsocial.nsq.Util.checkArgument;
+import static com.sproutsocial.nsq.Util.checkNotNull;
+
+/**
+ * Collects the messages of a subscription, from all its connections, into batches for a BatchMessageHandler.
+ * Handler threads only append to a lock-free queue, the thread that fills a batch runs the handler,
+ * a partial batch is handed to the executor maxDelayMillis after its first message.
+ * With adaptive maxInFlight the latency of each batch is reported to the RdyController of the subscription.
+ */
+@ThreadSafe
+class MessageBatcher implements MessageHandler {
+
+    private final Client client;
+    private final BatchMessageHandler handler;
+    private final int maxSize;
+    private final int maxDelayMillis;
+    private final Queue<Message> queue = new ConcurrentLinkedQueue<Message>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean isDelayScheduled = new AtomicBoolean();
+    private volatile Subscription subscription;
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageBatcher.class);
+
+    public MessageBatcher(Client client, BatchMessageHandler handler, int maxSize, int maxDelayMillis) {
+        checkNotNull(client);
+        checkNotNull(handler);
+        checkArgument(maxSize > 0);
+        checkArgument(maxDelayMillis > 0);
+        this.client = client;
+        this.handler = handler;
+        this.maxSize = maxSize;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    void setSubscription(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void accept(Message msg) {
+        queue.add(msg);
+        if (size.incrementAndGet() >= maxSize) {
+            sendFullBatches(); //already on a handler thread
+        }
+        else if (isDelayScheduled.compareAndSet(false, true)) {
+            client.schedule(new Runnable() {
+                public void run() {
+                    sendDelayedBatch();
+                }
+            }, maxDelayMillis);
+        }
+    }
+
+    private void sendDelayedBatch() {
+        //cleared before draining, messages added after this schedule another delayed send
+        isDelayScheduled.set(false);
+        Runnable sendAll = new Runnable() {
+            public void run() {
+                sendAll();
+            }
+        };
+        try {
+            client.getExecutor().execute(sendAll);
+        }
+        catch (RejectedExecutionException e) {
+            sendAll.run(); //client stopping
+        }
+    }
+
+    private void sendFullBatches() {
+        while (size.get() >= maxSize) {
+            List<Message> batch = drain();
+            if (batch == null) {
+                break;
+            }
+            send(batch);
+        }
+    }
+
+    /**
+     * Sends everything waiting, in batches of up to maxSize messages.
+     */
+    void sendAll() {
+        List<Message> batch = drain();
+        while (batch != null) {
+            send(batch);
+            batch = drain();
+        }
+    }
+
+    private void send(List<Message> batch) {
+        Subscription sub = subscription;
+        RdyController controller = sub != null ? sub.getRdyController() : null;
+        long start = controller != null ? System.nanoTime() : 0;
+        try {
+            handler.accept(batch);
+        }
+        catch (Throwable t) {
+            logger.error("batch message error. batchSize:{}", batch.size(), t);
+        }
+        if (controller != null) {
+            controller.handled(System.nanoTime() - start);
+        }
+    }
+
+    private List<Message> drain() {
+        List<Message> batch = new ArrayList<Message>(Math.min(maxSize, Math.max(size.get(), 1)));
+        Message msg;
+        while (batch.size() < maxSize && (msg = queue.poll()) != null) {
+            batch.add(msg);
+        }
+        if (batch.isEmpty()) {
+            return null;
+        }
+        size.addAndGet(-batch.size());
+        return batch;
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.sproutsocial.nsq;
+
+/**
+ * A 16 byte nsq message id held as two longs, the first and last 8 bytes big endian as read by DataInputStream.readLong,
+ * so decoding and acking a message doesn't allocate a byte[] or String for its id.
+ */
+final class MessageId {
+
+    static final int SIZE = 16;
+
+    private MessageId() {
+    }
+
+    static void write(long high, long low, byte[] dest, int offset) {
+        putLong(high, dest, offset);
+        putLong(low, dest, offset + 8);
+    }
+
+    static String toString(long high, long low) {
+        byte[] id = new byte[SIZE];
+        write(high, low, id, 0);
+        return new String(id, Util.US_ASCII);
+    }
+
+    private static void putLong(long value, byte[] b, int offset) {
+        for (int i = offset + 7; i >= offset; i--) {
+            b[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+}
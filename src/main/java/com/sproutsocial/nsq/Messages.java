@@ -0,0 +1,98 @@
+package com.sproutsocial.nsq;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads pooled message bodies without copying, see Subscriber.setBodyPool, and acks many messages at once
+ * for handlers that process messages in batches.
+ * Messages are grouped by connection, each group is written in one pass holding the connection lock
+ * and flushed once, instead of queueing every ack separately.
+ */
+public final class Messages {
+
+    private Messages() {
+    }
+
+    public static void finishAll(Collection<? extends Message> messages) {
+        ackAll(messages, AckQueue.FIN, 0);
+    }
+
+    public static void requeueAll(Collection<? extends Message> messages) {
+        ackAll(messages, AckQueue.REQ, 0);
+    }
+
+    public static void requeueAll(Collection<? extends Message> messages, int delayMillis) {
+        ackAll(messages, AckQueue.REQ, delayMillis);
+    }
+
+    /**
+     * The body without copying it, each call returns a new view with position 0 so readers don't share a position.
+     * With a Subscriber BodyPool this is a pooled buffer that is only valid until the message is released,
+     * and getData() returns a copy of it. Other Message implementations return their getData() wrapped.
+     */
+    public static ByteBuffer getDataBuffer(Message msg) {
+        if (msg instanceof NSQMessage) {
+            return ((NSQMessage) msg).getDataBuffer();
+        }
+        return ByteBuffer.wrap(msg.getData());
+    }
+
+    /**
+     * Keeps a pooled body valid after finish or requeue, each retain needs a matching release.
+     * Does nothing without a BodyPool.
+     */
+    public static void retain(Message msg) {
+        if (msg instanceof NSQMessage) {
+            ((NSQMessage) msg).retain();
+        }
+    }
+
+    /**
+     * Returns a pooled body to its BodyPool once no references are left. finish and requeue release the
+     * handler's reference, call this instead when a handler is done with the body before acking.
+     * Does nothing without a BodyPool.
+     */
+    public static void release(Message msg) {
+        if (msg instanceof NSQMessage) {
+            ((NSQMessage) msg).release();
+        }
+    }
+
+    private static void ackAll(Collection<? extends Message> messages, byte type, int delayMillis) {
+        Map<SubConnection, List<NSQMessage>> byConnection = new IdentityHashMap<SubConnection, List<NSQMessage>>();
+        for (Message msg : messages) {
+            if (!(msg instanceof NSQMessage)) {
+                ackOne(msg, type, delayMillis); //not from this library, e.g. a test double
+                continue;
+            }
+            NSQMessage nsqMsg = (NSQMessage) msg;
+            List<NSQMessage> group = byConnection.get(nsqMsg.getConnection());
+            if (group == null) {
+                group = new ArrayList<NSQMessage>();
+                byConnection.put(nsqMsg.getConnection(), group);
+            }
+            group.add(nsqMsg);
+        }
+        for (Map.Entry<SubConnection, List<NSQMessage>> entry : byConnection.entrySet()) {
+            entry.getKey().ackAll(entry.getValue(), type, delayMillis);
+            for (NSQMessage msg : entry.getValue()) {
+                msg.releaseHandler();
+            }
+        }
+    }
+
+    private static void ackOne(Message msg, byte type, int delayMillis) {
+        if (type == AckQueue.FIN) {
+            msg.finish();
+        }
+        else {
+            msg.requeue(delayMillis);
+        }
+    }
+
+}
@@ -1,18 +1,23 @@
 package com.sproutsocial.nsq;
 
-class NSQMessage implements Message {
+import java.nio.ByteBuffer;
+
+class NSQMessage implements Message, Runnable {
 
     private final long timestamp;
     private final int attempts;
-    private final String id;
+    private final long idHigh;
+    private final long idLow;
+    private String id; //created on first use, racy but always the same value
     private final byte[] data;
     private final String topic;
     private final SubConnection connection;
 
-    NSQMessage(long timestamp, int attempts, String id, byte[] data, String topic, SubConnection connection) {
+    NSQMessage(long timestamp, int attempts, long idHigh, long idLow, byte[] data, String topic, SubConnection connection) {
         this.timestamp = timestamp;
         this.attempts = attempts;
-        this.id = id;
+        this.idHigh = idHigh;
+        this.idLow = idLow;
         this.data = data;
         this.topic = topic;
         this.connection = connection;
@@ -23,8 +28,16 @@ class NSQMessage implements Message {
         return data;
     }
 
+    //see Messages.getDataBuffer, retain and release
+    ByteBuffer getDataBuffer() {
+        return ByteBuffer.wrap(data);
+    }
+
     @Override
     public String getId() {
+        if (id == null) {
+            id = MessageId.toString(idHigh, idLow);
+        }
         return id;
     }
 
@@ -45,22 +58,54 @@ class NSQMessage implements Message {
 
     @Override
     public void finish() {
-        connection.finish(id);
+        connection.finish(idHigh, idLow);
+        releaseHandler();
     }
 
     @Override
     public void requeue() {
-        connection.requeue(id);
+        connection.requeue(idHigh, idLow);
+        releaseHandler();
     }
 
     @Override
     public void requeue(int delayMillis) {
-        connection.requeue(id, delayMillis);
+        connection.requeue(idHigh, idLow, delayMillis);
+        releaseHandler();
     }
 
     @Override
     public void touch() {
-        connection.touch(id);
+        connection.touch(idHigh, idLow);
+    }
+
+    //the body is garbage collected, PooledMessage overrides these
+
+    void retain() {
+    }
+
+    void release() {
+    }
+
+    //called after finish and requeue
+    void releaseHandler() {
+    }
+
+    SubConnection getConnection() {
+        return connection;
+    }
+
+    long getIdHigh() {
+        return idHigh;
+    }
+
+    long getIdLow() {
+        return idLow;
+    }
+
+    @Override
+    public void run() {
+        connection.handle(this);
     }
 
 }
@@ -0,0 +1,169 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads frames for many connections on one selector thread, instead of a blocking read thread per connection.
+ * Frames are handed to the connection the same way its own read thread would, heartbeats and messages
+ * are passed on to the executors so this thread never blocks.
+ * The thread starts with the first connection and exits once every connection has closed.
+ */
+@ThreadSafe
+class NioReader {
+
+    private final Queue<Registration> pending = new ConcurrentLinkedQueue<Registration>();
+    @GuardedBy("this")
+    private Selector selector;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SELECT_MILLIS = 1000;
+    private static final ThreadFactory threadFactory = Util.threadFactory("nsq-nio");
+
+    private static final Logger logger = LoggerFactory.getLogger(NioReader.class);
+
+    /**
+     * Starts reading a connected non-blocking channel, the connect handshake must already be done.
+     */
+    synchronized void register(Connection con, SocketChannel channel) throws IOException {
+        if (selector == null) {
+            final Selector sel = Selector.open();
+            selector = sel;
+            threadFactory.newThread(new Runnable() {
+                public void run() {
+                    read(sel);
+                }
+            }).start();
+        }
+        pending.add(new Registration(con, channel));
+        selector.wakeup();
+    }
+
+    private void read(Selector sel) {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (pending.isEmpty() && sel.keys().isEmpty()) {
+                        selector = null;
+                        break;
+                    }
+                }
+                Registration reg;
+                while ((reg = pending.poll()) != null) {
+                    try {
+                        reg.channel.register(sel, SelectionKey.OP_READ, reg);
+                    }
+                    catch (IOException e) {
+                        reg.con.readFailed(e); //closed before it was registered
+                    }
+                }
+                sel.select(SELECT_MILLIS); //times out to notice connections closed by other threads
+                for (Iterator<SelectionKey> iter = sel.selectedKeys().iterator(); iter.hasNext(); ) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    Registration readyReg = (Registration) key.attachment();
+                    try {
+                        readyReg.read();
+                    }
+                    catch (Exception e) {
+                        key.cancel();
+                        readyReg.con.readFailed(e);
+                    }
+                }
+            }
+        }
+        catch (Throwable t) {
+            logger.error("nio read loop failed", t);
+            synchronized (this) {
+                selector = null;
+            }
+            for (SelectionKey key : sel.keys()) {
+                ((Registration) key.attachment()).con.readFailed(new IOException("nio read loop failed"));
+            }
+        }
+        finally {
+            try {
+                sel.close();
+            }
+            catch (IOException e) {
+                logger.debug("error closing selector", e);
+            }
+        }
+        logger.debug("nio read loop done");
+    }
+
+    //reused for every frame of a connection
+    private static class FrameInput extends ByteArrayInputStream {
+
+        FrameInput() {
+            super(new byte[0]);
+        }
+
+        void reset(byte[] array, int offset, int length) {
+            buf = array;
+            pos = offset;
+            count = offset + length;
+            mark = offset;
+        }
+    }
+
+    private static class Registration {
+        private final Connection con;
+        private final SocketChannel channel;
+        private ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        private final FrameInput frameInput = new FrameInput();
+        private final DataInputStream frame = new DataInputStream(frameInput);
+
+        Registration(Connection con, SocketChannel channel) {
+            this.con = con;
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(buf) < 0) {
+                throw new EOFException("connection closed by nsqd");
+            }
+            buf.flip();
+            while (buf.remaining() >= 4) {
+                int size = buf.getInt(buf.position());
+                if (size < 4) {
+                    throw new IOException("bad frame size:" + size);
+                }
+                if (buf.remaining() < 4 + size) {
+                    if (4 + size > buf.capacity()) {
+                        buf = ByteBuffer.allocate(4 + size).put(buf);
+                        buf.flip();
+                    }
+                    break;
+                }
+                int start = buf.position() + 4;
+                buf.position(start + size);
+                frameInput.reset(buf.array(), start, size);
+                con.onFrame(con.readFrame(frame, size));
+            }
+            buf.compact();
+            //keep the large buffer while a frame that doesn't fit BUFFER_SIZE is partly read
+            if (buf.capacity() > BUFFER_SIZE && buf.position() <= BUFFER_SIZE
+                    && (buf.position() < 4 || 4 + buf.getInt(0) <= BUFFER_SIZE)) {
+                buf.flip();
+                buf = ByteBuffer.allocate(BUFFER_SIZE).put(buf); //shrink after a large message
+            }
+        }
+    }
+
+}
@@ -0,0 +1,20 @@
+package com.sproutsocial.nsq;
+
+/**
+ * What to do when a bounded publish queue or buffer is full.
+ */
+public enum OverflowPolicy {
+
+    /** wait for space in the queue */
+    BLOCK,
+
+    /** throw NSQException to the caller */
+    REJECT,
+
+    /** discard the new message, the returned PublishFuture fails */
+    DROP,
+
+    /** discard the oldest waiting messages to make room, their PublishFutures fail */
+    DROP_OLDEST
+
+}
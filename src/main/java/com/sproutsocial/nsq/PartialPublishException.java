@@ -0,0 +1,25 @@
+package com.sproutsocial.nsq;
+
+import java.util.List;
+
+/**
+ * Thrown when some of the MPUBs a list of messages was split into failed and the others were published.
+ * Retrying only the unpublished messages keeps the rest from being delivered twice.
+ */
+class PartialPublishException extends NSQException {
+
+    private final List<byte[]> unpublished;
+
+    PartialPublishException(Throwable cause, List<byte[]> unpublished) {
+        super(cause.getMessage(), cause);
+        this.unpublished = unpublished;
+    }
+
+    /**
+     * @return the messages of the MPUBs that failed or were never written, in order
+     */
+    List<byte[]> getUnpublished() {
+        return unpublished;
+    }
+
+}
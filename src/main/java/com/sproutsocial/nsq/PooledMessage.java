@@ -0,0 +1,91 @@
+package com.sproutsocial.nsq;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import static com.sproutsocial.nsq.Util.checkState;
+
+/**
+ * A message with its body in a buffer from a BodyPool, returned to the pool when the reference count reaches zero.
+ * The handler holds the first reference, dropped by the first finish, requeue or release.
+ */
+class PooledMessage extends NSQMessage {
+
+    private final BodyPool pool;
+    private final BodyPool.Tracker tracker;
+    private volatile ByteBuffer body;
+    private volatile int refCount = 1;
+    private volatile int isHandlerReleased = 0;
+
+    //field updaters instead of atomics, saves two allocations per message
+    private static final AtomicIntegerFieldUpdater<PooledMessage> refCountUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(PooledMessage.class, "refCount");
+    private static final AtomicIntegerFieldUpdater<PooledMessage> handlerReleasedUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(PooledMessage.class, "isHandlerReleased");
+
+    PooledMessage(long timestamp, int attempts, long idHigh, long idLow, ByteBuffer body, BodyPool pool, String topic, SubConnection connection) {
+        super(timestamp, attempts, idHigh, idLow, null, topic, connection);
+        this.body = body;
+        this.pool = pool;
+        this.tracker = pool.track(this, topic);
+    }
+
+    /**
+     * @return a copy of the body, use Messages.getDataBuffer to read it without copying
+     */
+    @Override
+    public byte[] getData() {
+        ByteBuffer buf = getDataBuffer();
+        byte[] copy = new byte[buf.remaining()];
+        buf.get(copy);
+        return copy;
+    }
+
+    //a view with its own position, so concurrent readers and getData don't move each other's position
+    @Override
+    ByteBuffer getDataBuffer() {
+        ByteBuffer buf = body;
+        checkState(buf != null, "message body released");
+        return buf.duplicate();
+    }
+
+    @Override
+    void retain() {
+        while (true) {
+            int count = refCount;
+            checkState(count > 0, "message body released");
+            if (refCountUpdater.compareAndSet(this, count, count + 1)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    void release() {
+        while (true) {
+            int count = refCount;
+            if (count <= 0) {
+                return; //already back in the pool
+            }
+            if (refCountUpdater.compareAndSet(this, count, count - 1)) {
+                if (count == 1) {
+                    ByteBuffer buf = body;
+                    body = null;
+                    if (tracker != null) {
+                        tracker.released();
+                    }
+                    pool.release(buf);
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    void releaseHandler() {
+        if (handlerReleasedUpdater.compareAndSet(this, 0, 1)) {
+            release();
+        }
+    }
+
+}
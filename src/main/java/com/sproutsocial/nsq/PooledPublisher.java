@@ -0,0 +1,371 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.sproutsocial.nsq.Util.checkArgument;
+import static com.sproutsocial.nsq.Util.checkNotNull;
+
+/**
+ * Publishes over a pool of connections to several nsqd hosts, given directly and/or discovered from nsqlookupd.
+ * Choosing a connection does not lock the publisher, see PublishRouting for the choices.
+ * When a publish fails the host is removed from the pool for retryDelayMillis and the publish is retried
+ * on another connection. A background task reconnects hosts and refreshes the lookup every checkIntervalSecs.
+ */
+@ThreadSafe
+public class PooledPublisher extends Publisher {
+
+    private final Set<HostAndPort> nsqds = new HashSet<HostAndPort>();
+    private final List<HostAndPort> lookups = new ArrayList<HostAndPort>();
+    @GuardedBy("this")
+    private Set<HostAndPort> lookupNsqds = Collections.emptySet();
+    @GuardedBy("this")
+    private final Map<HostAndPort, Long> unhealthyUntil = new HashMap<HostAndPort, Long>();
+    @GuardedBy("this")
+    private final Set<HostAndPort> connecting = new HashSet<HostAndPort>();
+    private volatile List<PubConnection> connections = Collections.emptyList();
+    private final AtomicInteger next = new AtomicInteger();
+    private final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+    private volatile PublishRouting routing = PublishRouting.ROUND_ROBIN;
+    private int connectionsPerHost = 1;
+    private int retryDelayMillis = 10000;
+
+    private static final int DEFAULT_CHECK_INTERVAL_SECS = 10;
+
+    private static final Logger logger = LoggerFactory.getLogger(PooledPublisher.class);
+
+    public PooledPublisher(Client client, int checkIntervalSecs, String... nsqdHosts) {
+        super(client);
+        checkArgument(checkIntervalSecs > 0);
+        for (String h : nsqdHosts) {
+            nsqds.add(HostAndPort.fromString(h).withDefaultPort(4150));
+        }
+        scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                checkConnections();
+            }
+        }, checkIntervalSecs * 1000, checkIntervalSecs * 1000, true);
+    }
+
+    public PooledPublisher(String... nsqdHosts) {
+        this(Client.getDefaultClient(), DEFAULT_CHECK_INTERVAL_SECS, nsqdHosts);
+    }
+
+    /**
+     * Also publish to every nsqd registered with these nsqlookupd hosts, found with the /nodes endpoint.
+     */
+    public synchronized void setLookupHosts(String... lookupHosts) {
+        lookups.clear();
+        for (String h : lookupHosts) {
+            lookups.add(HostAndPort.fromString(h).withDefaultPort(4161));
+        }
+    }
+
+    /**
+     * The nsqlookupd requests and connects run without the publisher lock, so failover isn't blocked by a slow
+     * lookup or connect. The connection list is swapped under the lock before and after connecting,
+     * hosts being connected are skipped by a concurrent check.
+     */
+    void checkConnections() {
+        if (isStopping) {
+            return;
+        }
+        List<HostAndPort> lookupHosts;
+        synchronized (this) {
+            lookupHosts = new ArrayList<HostAndPort>(lookups);
+        }
+        Set<HostAndPort> found = lookupHosts.isEmpty() ? null : lookupNodes(lookupHosts);
+
+        List<PubConnection> removed = new ArrayList<PubConnection>();
+        List<HostAndPort> toConnect = new ArrayList<HostAndPort>();
+        synchronized (this) {
+            if (found != null) {
+                lookupNsqds = found; //on failure keep using the last nodes found
+            }
+            Set<HostAndPort> hosts = new HashSet<HostAndPort>(nsqds);
+            hosts.addAll(lookupNsqds);
+            long now = Util.clock();
+            for (Iterator<Map.Entry<HostAndPort, Long>> iter = unhealthyUntil.entrySet().iterator(); iter.hasNext(); ) {
+                if (iter.next().getValue() <= now) {
+                    iter.remove();
+                }
+            }
+            List<PubConnection> cons = new ArrayList<PubConnection>(connections);
+            Map<HostAndPort, Integer> counts = new HashMap<HostAndPort, Integer>();
+            for (Iterator<PubConnection> iter = cons.iterator(); iter.hasNext(); ) {
+                PubConnection con = iter.next();
+                if (!hosts.contains(con.getHost())) {
+                    logger.info("nsqd removed from pool:{}", con.getHost());
+                    iter.remove();
+                    removed.add(con);
+                }
+                else {
+                    Integer count = counts.get(con.getHost());
+                    counts.put(con.getHost(), count == null ? 1 : count + 1);
+                }
+            }
+            connections = Collections.unmodifiableList(cons);
+            for (HostAndPort host : hosts) {
+                if (unhealthyUntil.containsKey(host) || connecting.contains(host)) {
+                    continue;
+                }
+                Integer count = counts.get(host);
+                for (int i = count == null ? 0 : count; i < connectionsPerHost; i++) {
+                    toConnect.add(host);
+                    connecting.add(host);
+                }
+            }
+        }
+        for (PubConnection con : removed) {
+            con.close();
+        }
+
+        List<PubConnection> added = new ArrayList<PubConnection>();
+        Set<HostAndPort> failed = new HashSet<HostAndPort>();
+        try {
+            for (HostAndPort host : toConnect) {
+                if (failed.contains(host)) {
+                    continue;
+                }
+                PubConnection con = new PubConnection(client, host, this);
+                try {
+                    con.connect(config);
+                    added.add(con);
+                    logger.info("publisher connected:{}", host);
+                }
+                catch (Exception e) {
+                    con.close();
+                    logger.error("error connecting to:{}", host, e);
+                    failed.add(host);
+                }
+            }
+        }
+        finally {
+            addConnections(toConnect, added, failed);
+        }
+    }
+
+    private synchronized void addConnections(List<HostAndPort> attempted, List<PubConnection> added, Set<HostAndPort> failed) {
+        connecting.removeAll(attempted);
+        long now = Util.clock();
+        for (HostAndPort host : failed) {
+            unhealthyUntil.put(host, now + retryDelayMillis);
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+        List<PubConnection> cons = new ArrayList<PubConnection>(connections);
+        for (PubConnection con : added) {
+            if (isStopping || unhealthyUntil.containsKey(con.getHost())) {
+                con.close(); //stopped, or failed over while connecting
+            }
+            else {
+                cons.add(con);
+            }
+        }
+        connections = Collections.unmodifiableList(cons);
+    }
+
+    /**
+     * @return every nsqd registered with the lookup hosts, null if there are none or every lookup failed
+     */
+    private Set<HostAndPort> lookupNodes(List<HostAndPort> lookupHosts) {
+        Set<HostAndPort> found = new HashSet<HostAndPort>();
+        boolean isFound = false;
+        for (HostAndPort lookup : lookupHosts) {
+            try {
+                LookupResponse resp = LookupResponse.get(client.getGson(), String.format("http://%s/nodes", lookup));
+                if (resp != null && resp.getProducers() != null) {
+                    for (LookupResponse.Producer prod : resp.getProducers()) {
+                        found.add(HostAndPort.fromParts(prod.getBroadcastAddress(), prod.getTcpPort()));
+                    }
+                    isFound = true;
+                }
+            }
+            catch (Exception e) {
+                logger.warn("lookup failure. nsqlookupd:{}", lookup, e);
+            }
+        }
+        return isFound ? found : null;
+    }
+
+    @Override
+    PubConnection getConnection() throws IOException {
+        List<PubConnection> cons = connections;
+        if (cons.isEmpty()) {
+            checkConnections();
+            cons = connections;
+            if (cons.isEmpty()) {
+                throw new NSQException(isStopping ? "publisher stopped" : "no nsqd available");
+            }
+        }
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        if (routing == PublishRouting.ROUND_ROBIN) {
+            return cons.get(start % cons.size());
+        }
+        else if (routing == PublishRouting.LATENCY) {
+            return choosePowerOfTwo(cons);
+        }
+        PubConnection best = null;
+        for (int i = 0; i < cons.size(); i++) {
+            PubConnection con = cons.get((start + i) % cons.size());
+            if (best == null || con.getPendingCount() < best.getPendingCount()) {
+                best = con;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    PubConnection getConnection(String topic) throws IOException {
+        return getConnection(); //the pool spreads topics, lanes are not used
+    }
+
+    //power of two choices, compare two random connections instead of scanning and herding onto the best one
+    private PubConnection choosePowerOfTwo(List<PubConnection> cons) {
+        int size = cons.size();
+        if (size == 1) {
+            return cons.get(0);
+        }
+        Random rand = random.get();
+        int a = rand.nextInt(size);
+        int b = rand.nextInt(size - 1);
+        if (b >= a) {
+            b++;
+        }
+        PubConnection conA = cons.get(a);
+        PubConnection conB = cons.get(b);
+        return latencyCost(conA) <= latencyCost(conB) ? conA : conB;
+    }
+
+    //peak latency: the average, or the wait of the oldest unanswered publish if longer, so a stalled nsqd
+    //scores worse the longer it stalls even though its average decays. Idle connections score 0 and get tried again
+    private static double latencyCost(PubConnection con) {
+        double latency = Math.max(con.getLatencyNanos(), con.getOldestPendingNanos());
+        return latency * (con.getPendingCount() + 1);
+    }
+
+    //checkConnections opens a replacement on its next run, or right away if the pool is empty
+    @Override
+    void replaceConnection(PubConnection failedCon) {
+        connectionClosed(failedCon);
+        failedCon.close();
+    }
+
+    @Override
+    void publishFailover(PubConnection failedCon, String topic, byte[] data) {
+        if (isStopping) {
+            throw new NSQException("publisher stopped");
+        }
+        if (failedCon != null) {
+            removeHost(failedCon.getHost());
+        }
+        try {
+            getConnection().publish(topic, data);
+        }
+        catch (Exception e) {
+            if (getSpool() != null && !isRejected(e)) {
+                spool(topic, data);
+                return;
+            }
+            throw new NSQException("publish failed", e);
+        }
+    }
+
+    private synchronized void removeHost(HostAndPort host) {
+        if (unhealthyUntil.containsKey(host)) {
+            return;
+        }
+        logger.warn("publish failed, removing nsqd from pool for {} millis:{}", retryDelayMillis, host);
+        unhealthyUntil.put(host, Util.clock() + retryDelayMillis);
+        List<PubConnection> cons = new ArrayList<PubConnection>(connections);
+        List<PubConnection> removed = new ArrayList<PubConnection>();
+        for (Iterator<PubConnection> iter = cons.iterator(); iter.hasNext(); ) {
+            PubConnection con = iter.next();
+            if (con.getHost().equals(host)) {
+                iter.remove();
+                removed.add(con);
+            }
+        }
+        connections = Collections.unmodifiableList(cons);
+        for (PubConnection con : removed) {
+            con.close();
+        }
+    }
+
+    @Override
+    public synchronized void connectionClosed(PubConnection closedCon) {
+        if (connections.contains(closedCon)) {
+            List<PubConnection> cons = new ArrayList<PubConnection>(connections);
+            cons.remove(closedCon);
+            connections = Collections.unmodifiableList(cons);
+            logger.debug("removed closed publisher connection:{}", closedCon.getHost());
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        super.stop();
+        for (PubConnection con : connections) {
+            con.close();
+        }
+        connections = Collections.emptyList();
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    public PublishRouting getRouting() {
+        return routing;
+    }
+
+    public void setRouting(PublishRouting routing) {
+        checkNotNull(routing);
+        this.routing = routing;
+    }
+
+    public synchronized int getConnectionsPerHost() {
+        return connectionsPerHost;
+    }
+
+    /**
+     * Number of connections to open to each nsqd, takes effect on the next connection check.
+     */
+    public synchronized void setConnectionsPerHost(int connectionsPerHost) {
+        checkArgument(connectionsPerHost > 0);
+        this.connectionsPerHost = connectionsPerHost;
+    }
+
+    public synchronized int getRetryDelayMillis() {
+        return retryDelayMillis;
+    }
+
+    /**
+     * How long a failed nsqd is left out of the pool before reconnecting.
+     */
+    public synchronized void setRetryDelayMillis(int retryDelayMillis) {
+        checkArgument(retryDelayMillis >= 0);
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+}
@@ -1,49 +1,352 @@
 package com.sproutsocial.nsq;
 
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Publish commands are pipelined, up to maxInFlight commands can be written before nsqd responds.
+ * nsqd responds to commands in order so the read thread completes pending publishes in FIFO order.
+ */
 class PubConnection extends Connection {
 
     private final Publisher publisher;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final Queue<PublishFuture> pending = new ConcurrentLinkedQueue<PublishFuture>();
+    private final Ewma latency = new Ewma(10, TimeUnit.SECONDS);
+    @GuardedBy("this")
+    private final Map<String, byte[]> pubCommands = new HashMap<String, byte[]>();
+    @GuardedBy("this")
+    private final Map<String, byte[]> mpubCommands = new HashMap<String, byte[]>();
+
+    private static final int MAX_CACHED_TOPICS = 1000;
+    static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private static final Logger logger = LoggerFactory.getLogger(PubConnection.class);
 
     public PubConnection(Client client, HostAndPort host, Publisher publisher) {
         super(client, host);
         this.publisher = publisher;
+        this.maxInFlight = publisher.getMaxInFlight();
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    public void publish(String topic, byte[] data) throws IOException {
+        awaitResponse(pub(topic, data));
+    }
+
+    public void publish(String topic, ByteBuffer data) throws IOException {
+        awaitResponse(pub(topic, data));
+    }
+
+    public void publish(String topic, InputStream data, int length) throws IOException {
+        awaitResponse(pub(topic, data, length));
     }
 
-    public synchronized void publish(String topic, byte[] data) throws IOException {
-        respQueue.clear();
-        writeCommand("PUB", topic);
-        write(data);
-        flushAndReadOK();
+    public void publish(String topic, FileChannel data, long position, int length) throws IOException {
+        awaitResponse(pub(topic, data, position, length));
     }
 
-    public synchronized void publishDeferred(String topic, byte[] data, long delayMillis) throws IOException {
-        respQueue.clear();
-        writeCommand("DPUB", topic, Long.toString(delayMillis));
-        write(data);
-        flushAndReadOK();
+    public void publishDeferred(String topic, byte[] data, long delayMillis) throws IOException {
+        awaitResponse(dpub(topic, data, delayMillis));
     }
 
-    public synchronized void publish(String topic, List<byte[]> dataList) throws IOException {
-        respQueue.clear();
-        writeCommand("MPUB", topic);
-        int bodySize = 4;
-        for (byte[] data : dataList) {
-            bodySize += data.length + 4;
+    /**
+     * Sends the messages in as many pipelined MPUBs as needed to stay under the publisher maxBodySize,
+     * returns after nsqd responds to all of them.
+     * @throws PartialPublishException if some of the MPUBs failed after others were published
+     */
+    public void publish(String topic, List<byte[]> dataList) throws IOException {
+        List<List<byte[]>> batches = split(dataList);
+        List<PublishFuture> futures = new ArrayList<PublishFuture>(batches.size());
+        Exception error = null;
+        try {
+            for (List<byte[]> batch : batches) {
+                futures.add(mpub(topic, batch));
+            }
         }
-        out.writeInt(bodySize);
-        out.writeInt(dataList.size());
-        for (byte[] data : dataList) {
-            write(data);
+        catch (IOException e) {
+            error = e; //the rest were not written
+        }
+        List<byte[]> unpublished = new ArrayList<byte[]>();
+        for (int i = 0; i < batches.size(); i++) {
+            if (i < futures.size()) {
+                try {
+                    awaitResponse(futures.get(i));
+                    continue;
+                }
+                catch (NSQException e) {
+                    error = error != null ? error : e;
+                }
+            }
+            unpublished.addAll(batches.get(i));
+        }
+        if (error == null) {
+            return;
+        }
+        if (unpublished.size() < dataList.size()) {
+            throw new PartialPublishException(error, unpublished);
+        }
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        throw (NSQException) error;
+    }
+
+    /**
+     * Writes the messages in as many pipelined MPUBs as needed to stay under the publisher maxBodySize,
+     * nsqd closes the connection if a body is too big.
+     * @return a future for each MPUB
+     */
+    public List<PublishFuture> mpubSplit(String topic, List<byte[]> dataList) throws IOException {
+        List<List<byte[]>> batches = split(dataList);
+        List<PublishFuture> futures = new ArrayList<PublishFuture>(batches.size());
+        for (List<byte[]> batch : batches) {
+            futures.add(mpub(topic, batch));
+        }
+        return futures;
+    }
+
+    /**
+     * @return the messages split into MPUB bodies of at most the publisher maxBodySize,
+     * a message larger than that gets a body of its own
+     */
+    List<List<byte[]>> split(List<byte[]> dataList) {
+        int maxBody = publisher.getMaxBodySize();
+        List<List<byte[]>> batches = new ArrayList<List<byte[]>>(1);
+        int start = 0;
+        while (start < dataList.size()) {
+            int end = start;
+            int bodySize = 4;
+            while (end < dataList.size() && (end == start || bodySize + 4 + dataList.get(end).length <= maxBody)) {
+                bodySize += 4 + dataList.get(end).length;
+                end++;
+            }
+            batches.add(start == 0 && end == dataList.size() ? dataList : dataList.subList(start, end));
+            start = end;
+        }
+        return batches;
+    }
+
+    public PublishFuture pub(String topic, byte[] data) throws IOException {
+        acquireInFlight();
+        synchronized (this) {
+            PublishFuture future = addPending();
+            try {
+                out.write(command("PUB", pubCommands, topic));
+                write(data);
+                flush();
+            }
+            catch (IOException e) {
+                close();
+                throw e;
+            }
+            return future;
+        }
+    }
+
+    public PublishFuture pub(String topic, ByteBuffer data) throws IOException {
+        acquireInFlight();
+        synchronized (this) {
+            PublishFuture future = addPending();
+            try {
+                out.write(command("PUB", pubCommands, topic));
+                write(data);
+                flush();
+            }
+            catch (IOException e) {
+                close();
+                throw e;
+            }
+            return future;
+        }
+    }
+
+    //streamed publishes hold the connection for the whole transfer
+    public PublishFuture pub(String topic, InputStream data, int length) throws IOException {
+        acquireInFlight();
+        synchronized (this) {
+            PublishFuture future = addPending();
+            try {
+                out.write(command("PUB", pubCommands, topic));
+                write(data, length);
+                flush();
+            }
+            catch (IOException e) {
+                close(); //the frame may be incomplete
+                throw e;
+            }
+            return future;
+        }
+    }
+
+    public PublishFuture pub(String topic, FileChannel data, long position, int length) throws IOException {
+        acquireInFlight();
+        synchronized (this) {
+            PublishFuture future = addPending();
+            try {
+                out.write(command("PUB", pubCommands, topic));
+                write(data, position, length);
+                flush();
+            }
+            catch (IOException e) {
+                close(); //the frame may be incomplete
+                throw e;
+            }
+            return future;
+        }
+    }
+
+    public PublishFuture dpub(String topic, byte[] data, long delayMillis) throws IOException {
+        acquireInFlight();
+        synchronized (this) {
+            PublishFuture future = addPending();
+            try {
+                writeCommand("DPUB", topic, Long.toString(delayMillis));
+                write(data);
+                flush();
+            }
+            catch (IOException e) {
+                close();
+                throw e;
+            }
+            return future;
+        }
+    }
+
+    public PublishFuture mpub(String topic, List<byte[]> dataList) throws IOException {
+        acquireInFlight();
+        synchronized (this) {
+            PublishFuture future = addPending();
+            try {
+                out.write(command("MPUB", mpubCommands, topic));
+                int bodySize = 4;
+                for (byte[] data : dataList) {
+                    bodySize += data.length + 4;
+                }
+                writeInt(bodySize);
+                writeInt(dataList.size());
+                for (byte[] data : dataList) {
+                    write(data);
+                }
+                flush();
+            }
+            catch (IOException e) {
+                close();
+                throw e;
+            }
+            return future;
+        }
+    }
+
+    //fewer socket writes for batches of medium sized messages, messages over 64k are not copied
+    @Override
+    protected int getWriteBufferSize() {
+        return WRITE_BUFFER_SIZE;
+    }
+
+    //encoded once per topic, the connection is used for a bounded number of topics in practice
+    @GuardedBy("this")
+    private byte[] command(String cmd, Map<String, byte[]> cache, String topic) {
+        byte[] bytes = cache.get(topic);
+        if (bytes == null) {
+            bytes = (cmd + " " + topic + "\n").getBytes(Util.US_ASCII);
+            if (cache.size() < MAX_CACHED_TOPICS) {
+                cache.put(topic, bytes);
+            }
+        }
+        return bytes;
+    }
+
+    private void acquireInFlight() {
+        try {
+            if (!inFlight.tryAcquire(getHeartbeatInterval(), TimeUnit.MILLISECONDS)) {
+                throw new NSQException("timeout waiting for in-flight publishes. con:" + toString());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NSQException("publish interrupted");
+        }
+    }
+
+    //added before the command is written so the response can never arrive first
+    @GuardedBy("this")
+    private PublishFuture addPending() {
+        PublishFuture future = new PublishFuture();
+        pending.add(future);
+        return future;
+    }
+
+    public void awaitResponse(PublishFuture future) {
+        if (!future.await(getHeartbeatInterval())) {
+            close(); //responses are matched by order, can't continue without this one
+            throw new NSQException("bad response:timeout");
         }
-        flushAndReadOK();
+    }
+
+    @Override
+    protected void onResponse(String response) {
+        PublishFuture future = pending.poll();
+        if (future == null) {
+            logger.warn("unexpected response:{} con:{}", response, toString());
+            return;
+        }
+        inFlight.release();
+        if ("OK".equals(response)) {
+            future.complete();
+            latency.update(future.getLatency(TimeUnit.NANOSECONDS));
+        }
+        else {
+            future.fail(new NSQException("bad response:" + response));
+            publisher.learnLimits(response);
+        }
+    }
+
+    /**
+     * @return publishes written or about to be written that nsqd has not responded to
+     */
+    public int getPendingCount() {
+        return maxInFlight - inFlight.availablePermits(); //pending.size() is O(n)
+    }
+
+    /**
+     * @return moving average of the time from writing a publish to nsqd responding OK, in nanoseconds
+     */
+    public double getLatencyNanos() {
+        return latency.get();
+    }
+
+    /**
+     * @return how long the oldest publish nsqd has not responded to has been waiting, 0 if none
+     */
+    public long getOldestPendingNanos() {
+        PublishFuture oldest = pending.peek();
+        return oldest != null ? Math.max(System.nanoTime() - oldest.getStartNanos(), 0) : 0;
     }
 
     @Override
     public void close() {
         super.close();
+        PublishFuture future;
+        while ((future = pending.poll()) != null) {
+            inFlight.release();
+            future.fail(new NSQException("connection closed:" + toString()));
+        }
         if (!publisher.isStopping) {
             //be paranoid about locks, we only care that this happens sometime soon
             client.getSchedExecutor().execute(new Runnable() {
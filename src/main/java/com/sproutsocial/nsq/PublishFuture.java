@@ -0,0 +1,197 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Completed when nsqd responds to a publish.
+ * Responses are matched to PUB, DPUB and MPUB commands in the order they were written to the connection.
+ */
+@ThreadSafe
+public class PublishFuture implements Future<Void> {
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final long startNanos = System.nanoTime();
+    @GuardedBy("this")
+    private boolean isCompleted = false;
+    @GuardedBy("this")
+    private List<Runnable> listeners = new ArrayList<Runnable>(1);
+    private volatile long endNanos;
+    private volatile Throwable error;
+
+    private static final Logger logger = LoggerFactory.getLogger(PublishFuture.class);
+
+    PublishFuture() {
+    }
+
+    /**
+     * @return a future completed when all of them complete, or failed with the first failure
+     */
+    static PublishFuture all(List<PublishFuture> futures) {
+        if (futures.size() == 1) {
+            return futures.get(0);
+        }
+        final PublishFuture all = new PublishFuture();
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (final PublishFuture future : futures) {
+            future.addListener(new Runnable() {
+                public void run() {
+                    Throwable error = future.getError();
+                    if (error != null) {
+                        all.fail(error);
+                    }
+                    else if (remaining.decrementAndGet() == 0) {
+                        all.complete();
+                    }
+                }
+            }, Util.DIRECT_EXECUTOR);
+        }
+        return all;
+    }
+
+    boolean complete() {
+        return finish(null);
+    }
+
+    boolean fail(Throwable t) {
+        return finish(t);
+    }
+
+    private boolean finish(Throwable t) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (isCompleted) {
+                return false;
+            }
+            //done before releasing the monitor, a listener added after this sees the result
+            endNanos = System.nanoTime();
+            error = t;
+            latch.countDown();
+            isCompleted = true;
+            toRun = listeners;
+            listeners = null;
+        }
+        for (Runnable listener : toRun) {
+            listener.run();
+        }
+        return true;
+    }
+
+    /**
+     * Runs the listener when nsqd responds or the publish fails, immediately if already done.
+     * The executor may run the listener on the connection read thread, it should not block.
+     */
+    public void addListener(final Runnable listener, final Executor executor) {
+        Util.checkNotNull(listener);
+        Util.checkNotNull(executor);
+        Runnable task = new Runnable() {
+            public void run() {
+                try {
+                    executor.execute(listener);
+                }
+                catch (Throwable t) {
+                    logger.error("publish listener error", t);
+                }
+            }
+        };
+        synchronized (this) {
+            if (!isCompleted) {
+                listeners.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Waits for the response, throws NSQException if nsqd responded with an error or the connection failed.
+     * @return false if the timeout expired before a response was received
+     */
+    boolean await(long timeoutMillis) {
+        try {
+            if (!latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NSQException("publish interrupted");
+        }
+        if (error != null) {
+            throw error instanceof NSQException ? (NSQException) error : new NSQException("publish failed", error);
+        }
+        return true;
+    }
+
+    /**
+     * @return the exception if the publish failed, null if it succeeded or is not done
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * @return time from the publish call until nsqd responded, or -1 if not done
+     */
+    public long getLatency(TimeUnit unit) {
+        return isDone() ? unit.convert(endNanos - startNanos, TimeUnit.NANOSECONDS) : -1;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false; //once written to the connection a publish can't be cancelled
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return result();
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PublishFuture{done:%s error:%s}", isDone(), error);
+    }
+
+}
@@ -0,0 +1,321 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.sproutsocial.nsq.Util.checkArgument;
+import static com.sproutsocial.nsq.Util.checkNotNull;
+
+/**
+ * Bounded queue behind Publisher.publishAsync.
+ * A single thread takes publishes from the queue and writes them to the connection without waiting for
+ * responses (up to the publisher maxInFlight), futures complete on the read thread when nsqd responds.
+ * Failed publishes are retried with the publisher failover on the batch executor, so order is not
+ * guaranteed after a failure.
+ */
+@ThreadSafe
+class PublishQueue {
+
+    private final Publisher publisher;
+    private final BlockingQueue<AsyncPublish> queue;
+    private final OverflowPolicy policy;
+    private final ExecutorService sendExecutor;
+    private final ScheduledExecutorService retryExecutor;
+    private final Set<PublishFuture> outstanding = Collections.newSetFromMap(new ConcurrentHashMap<PublishFuture, Boolean>());
+    private volatile boolean isStopping = false;
+
+    private static final int STOP_WAIT_MILLIS = 2000;
+
+    private static final Logger logger = LoggerFactory.getLogger(PublishQueue.class);
+
+    public PublishQueue(Publisher publisher, int capacity, OverflowPolicy policy) {
+        checkNotNull(publisher);
+        checkNotNull(policy);
+        checkArgument(capacity > 0);
+        this.publisher = publisher;
+        this.queue = new ArrayBlockingQueue<AsyncPublish>(capacity);
+        this.policy = policy;
+        this.retryExecutor = publisher.getBatchExecutor();
+        this.sendExecutor = Executors.newSingleThreadExecutor(Util.threadFactory("nsq-pub-async"));
+        sendExecutor.execute(new Runnable() {
+            public void run() {
+                sendLoop();
+            }
+        });
+    }
+
+    public PublishFuture publish(String topic, byte[] data) {
+        return submit(new AsyncPublish(topic, data, null, 0));
+    }
+
+    public PublishFuture publish(String topic, List<byte[]> dataList) {
+        return submit(new AsyncPublish(topic, null, dataList, 0));
+    }
+
+    public PublishFuture publishDeferred(String topic, byte[] data, long delayMillis) {
+        return submit(new AsyncPublish(topic, data, null, delayMillis));
+    }
+
+    private PublishFuture submit(AsyncPublish pub) {
+        if (isStopping) {
+            throw new NSQException("publisher stopped");
+        }
+        final PublishFuture future = pub.future;
+        outstanding.add(future);
+        future.addListener(new Runnable() {
+            public void run() {
+                synchronized (outstanding) {
+                    outstanding.remove(future);
+                    if (outstanding.isEmpty()) {
+                        outstanding.notifyAll();
+                    }
+                }
+            }
+        }, Util.DIRECT_EXECUTOR);
+
+        boolean isQueued;
+        if (policy == OverflowPolicy.BLOCK) {
+            try {
+                queue.put(pub);
+                isQueued = true;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.fail(new NSQException("publish interrupted"));
+                throw new NSQException("publish interrupted");
+            }
+        }
+        else {
+            isQueued = queue.offer(pub);
+            while (!isQueued && policy == OverflowPolicy.DROP_OLDEST) {
+                AsyncPublish oldest = queue.poll();
+                if (oldest != null) {
+                    oldest.future.fail(new NSQException("dropped from full publish queue"));
+                }
+                isQueued = queue.offer(pub);
+            }
+        }
+        if (isQueued && isStopping && queue.remove(pub)) {
+            //stop() drained the queue between the check above and the enqueue, nothing will send it
+            future.fail(new NSQException("publisher stopped"));
+            throw new NSQException("publisher stopped");
+        }
+        if (!isQueued) {
+            NSQException e = new NSQException("publish queue full, capacity:" + (queue.size() + queue.remainingCapacity()));
+            future.fail(e);
+            if (policy == OverflowPolicy.REJECT) {
+                throw e;
+            }
+        }
+        return future;
+    }
+
+    private void sendLoop() {
+        while (!isStopping) {
+            try {
+                AsyncPublish pub = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (pub != null) {
+                    send(pub);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (Throwable t) {
+                logger.error("async publish error", t);
+            }
+        }
+        logger.debug("async publish loop done");
+    }
+
+    private void send(final AsyncPublish pub) {
+        PubConnection con = null;
+        try {
+            if (pub.delayMillis == 0 && publisher.isSpooling()) {
+                pub.spool(publisher); //behind messages already spooled to keep order
+                pub.future.complete();
+                return;
+            }
+            con = publisher.getConnection(pub.topic);
+            final PubConnection sentCon = con;
+            final PublishFuture conFuture = pub.send(con);
+            conFuture.addListener(new Runnable() {
+                public void run() {
+                    Throwable error = conFuture.getError();
+                    if (error == null) {
+                        pub.future.complete();
+                    }
+                    else {
+                        retry(pub, sentCon, error);
+                    }
+                }
+            }, Util.DIRECT_EXECUTOR);
+        }
+        catch (Exception e) {
+            retry(pub, con, e);
+        }
+    }
+
+    private void retry(final AsyncPublish pub, final PubConnection failedCon, Throwable error) {
+        if (pub.delayMillis > 0) {
+            //deferred publish never fails over
+            pub.future.fail(new NSQException("deferred publish failed", error));
+            return;
+        }
+        logger.error("async publish error with:{}", failedCon != null ? failedCon.getHost() : "no connection", error);
+        if (Publisher.isRejected(error) && !Publisher.isBodyTooBig(error)) {
+            //another nsqd or the spool would get the same answer
+            pub.future.fail(new NSQException("publish rejected by nsqd", error));
+            return;
+        }
+        try {
+            retryExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        pub.failover(publisher, failedCon);
+                        pub.future.complete();
+                    }
+                    catch (Exception e) {
+                        pub.future.fail(e);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            pub.future.fail(new NSQException("publisher stopped", error));
+        }
+    }
+
+    /**
+     * Sends anything left in the queue from the calling thread, then waits for responses to publishes in flight.
+     * Publishes still outstanding after that fail.
+     */
+    public void stop() {
+        isStopping = true;
+        List<AsyncPublish> remaining = new ArrayList<AsyncPublish>();
+        queue.drainTo(remaining);
+        for (AsyncPublish pub : remaining) {
+            send(pub);
+        }
+        long end = Util.clock() + STOP_WAIT_MILLIS;
+        synchronized (outstanding) {
+            long wait;
+            while (!outstanding.isEmpty() && (wait = end - Util.clock()) > 0) {
+                try {
+                    outstanding.wait(wait);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        for (PublishFuture future : new ArrayList<PublishFuture>(outstanding)) {
+            future.fail(new NSQException("publisher stopped"));
+        }
+        Util.shutdownAndAwaitTermination(sendExecutor, 200, TimeUnit.MILLISECONDS);
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    private static class AsyncPublish {
+        private final String topic;
+        private final byte[] data;
+        private final List<byte[]> dataList;
+        private final long delayMillis;
+        private final PublishFuture future = new PublishFuture();
+        //the MPUBs a list was split into, set by send and read by failover after it
+        private List<List<byte[]>> batches;
+        private List<PublishFuture> batchFutures;
+
+        AsyncPublish(String topic, byte[] data, List<byte[]> dataList, long delayMillis) {
+            this.topic = topic;
+            this.data = data;
+            this.dataList = dataList;
+            this.delayMillis = delayMillis;
+        }
+
+        PublishFuture send(PubConnection con) throws IOException {
+            if (dataList != null) {
+                //split before nsqd rejects a big body
+                batches = con.split(dataList);
+                batchFutures = new ArrayList<PublishFuture>(batches.size());
+                for (List<byte[]> batch : batches) {
+                    batchFutures.add(con.mpub(topic, batch));
+                }
+                return PublishFuture.all(batchFutures);
+            }
+            else if (delayMillis > 0) {
+                return con.dpub(topic, data, delayMillis);
+            }
+            return con.pub(topic, data);
+        }
+
+        void spool(Publisher publisher) {
+            if (dataList != null) {
+                for (byte[] d : dataList) {
+                    publisher.spool(topic, d);
+                }
+            }
+            else {
+                publisher.spool(topic, data);
+            }
+        }
+
+        void failover(Publisher publisher, PubConnection failedCon) {
+            if (dataList != null) {
+                for (byte[] d : unpublished(failedCon)) {
+                    publisher.publishFailover(failedCon, topic, d);
+                }
+            }
+            else {
+                publisher.publishFailover(failedCon, topic, data);
+            }
+        }
+
+        //the messages of MPUBs that failed or were never written, MPUBs nsqd accepted are not sent again
+        private List<byte[]> unpublished(PubConnection con) {
+            if (batches == null || con == null) {
+                return dataList;
+            }
+            List<byte[]> unpublished = new ArrayList<byte[]>();
+            for (int i = 0; i < batches.size(); i++) {
+                if (i < batchFutures.size()) {
+                    try {
+                        if (batchFutures.get(i).await(con.getHeartbeatInterval())) {
+                            continue;
+                        }
+                    }
+                    catch (NSQException e) {
+                        //failed, sent again
+                    }
+                }
+                unpublished.addAll(batches.get(i));
+            }
+            return unpublished;
+        }
+    }
+
+}
@@ -0,0 +1,20 @@
+package com.sproutsocial.nsq;
+
+/**
+ * How a PooledPublisher chooses the connection for each publish.
+ */
+public enum PublishRouting {
+
+    /** each connection in turn */
+    ROUND_ROBIN,
+
+    /** the connection with the fewest publishes waiting for a response */
+    LEAST_OUTSTANDING,
+
+    /**
+     * the better of two random connections, scored by recent response time (moving average)
+     * multiplied by the publishes waiting for a response, so a slow but alive nsqd gets less traffic
+     */
+    LATENCY
+
+}
@@ -5,16 +5,27 @@ import net.jcip.annotations.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static com.sproutsocial.nsq.Util.checkArgument;
 import static com.sproutsocial.nsq.Util.checkNotNull;
+import static com.sproutsocial.nsq.Util.checkState;
 
 @ThreadSafe
 public class Publisher extends BasePubSub {
@@ -22,14 +33,52 @@ public class Publisher extends BasePubSub {
     private final HostAndPort nsqd;
     private final HostAndPort failoverNsqd;
     private PubConnection con;
+    @GuardedBy("this")
     private boolean isFailover = false;
-    private long failoverStart;
+    @GuardedBy("this")
+    private boolean isProbing = false;
+    @GuardedBy("this")
+    private boolean isWarmStandby = false;
+    @GuardedBy("this")
+    private PubConnection standby;
+    @GuardedBy("this")
+    private ScheduledFuture<?> standbyTask;
+    @GuardedBy("this")
+    private int probeDelayMillis;
+    private int probeInitDelayMillis = 1000;
+    private int probeMaxDelayMillis = 30000;
     private int failoverDurationSecs = 300;
-    private final Map<String, Batcher> batchers = new HashMap<String, Batcher>();
+    private int maxInFlight = 1;
+    private final ConcurrentMap<String, Batcher> batchers = new ConcurrentHashMap<String, Batcher>();
     private ScheduledExecutorService batchExecutor;
+    private ScheduledExecutorService connectExecutor;
+    private volatile int batchTargetLatencyMillis = 0;
+    private volatile long maxBufferBytes = 0;
+    private volatile OverflowPolicy bufferPolicy = OverflowPolicy.BLOCK;
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final Object bufferMonitor = new Object();
+    private volatile int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+    private volatile int maxMessageSize = 0;
+    private volatile boolean isBuffered = false;
+    private volatile PublishQueue publishQueue;
+    private int asyncQueueSize = DEFAULT_ASYNC_QUEUE_SIZE;
+    private OverflowPolicy asyncOverflowPolicy = OverflowPolicy.BLOCK;
+    private volatile Spool spool;
+    private ScheduledExecutorService spoolExecutor;
+    private volatile AtomicReferenceArray<PubConnection> lanes;
+    private final Object failoverLock = new Object();
 
     private static final int DEFAULT_MAX_BATCH_SIZE = 16 * 1024;
     private static final int DEFUALT_MAX_BATCH_DELAY = 300;
+    private static final int MAX_ADAPTIVE_BATCH_SIZE = 512 * 1024;
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 10000;
+    private static final int SPOOL_REPLAY_BATCH_SIZE = 256 * 1024;
+    private static final int SPOOL_REPLAY_INTERVAL_MILLIS = 1000;
+    private static final int STANDBY_CHECK_MILLIS = 5000;
+    private static final int DEFAULT_MAX_BODY_SIZE = 5 * 1024 * 1024;
+    private static final Pattern TOO_BIG = Pattern.compile("(body|message) too big \\d+ > (\\d+)");
+    private static final Pattern REJECTED = Pattern.compile("(error from nsqd|bad response):E_");
 
     private static final Logger logger = LoggerFactory.getLogger(Publisher.class);
 
@@ -40,6 +89,14 @@ public class Publisher extends BasePubSub {
         client.addPublisher(this);
     }
 
+    //for subclasses that manage their own connections
+    Publisher(Client client) {
+        super(client);
+        this.nsqd = null;
+        this.failoverNsqd = null;
+        client.addPublisher(this);
+    }
+
     public Publisher(String nsqd, String failoverNsqd) {
         this(Client.getDefaultClient(), nsqd, failoverNsqd);
     }
@@ -54,62 +111,399 @@ public class Publisher extends BasePubSub {
             if (isStopping) {
                 throw new NSQException("publisher stopped");
             }
-            connect(nsqd);
-        }
-        else if (isFailover && Util.clock() - failoverStart > failoverDurationSecs * 1000) {
-            isFailover = false;
-            connect(nsqd);
-            logger.info("using primary nsqd");
+            if (isProbing) {
+                throw new NSQException("nsqd unavailable, reconnecting in background. nsqd:" + nsqd);
+            }
+            try {
+                connect(nsqd);
+            }
+            catch (IOException e) {
+                startProbing();
+                throw e;
+            }
         }
     }
 
     @GuardedBy("this")
     private void connect(HostAndPort host) throws IOException {
+        closeLanes();
         if (con != null) {
             con.close();
+            con = null;
         }
-        con = new PubConnection(client, host, this);
+        con = open(host);
+    }
+
+    private PubConnection open(HostAndPort host) throws IOException {
+        PubConnection pubCon = new PubConnection(client, host, this);
         try {
-            con.connect(config);
+            pubCon.connect(getConfig());
         }
         catch(IOException e) {
-            con.close();
-            con = null;
+            pubCon.close();
             throw e;
         }
         logger.info("publisher connected:{}", host);
+        return pubCon;
+    }
+
+    /**
+     * Reconnects in the background, publishing threads never wait for it.
+     * The primary is probed with exponential backoff and jitter until it accepts a connection,
+     * then traffic moves back to it right away.
+     */
+    @GuardedBy("this")
+    private void startProbing() {
+        if (isProbing || isStopping) {
+            return;
+        }
+        isProbing = true;
+        probeDelayMillis = 0;
+        scheduleProbe();
+    }
+
+    @GuardedBy("this")
+    private void scheduleProbe() {
+        probeDelayMillis = probeDelayMillis == 0 ? probeInitDelayMillis : Math.min(probeDelayMillis * 2, probeMaxDelayMillis);
+        int delay = (int) (probeDelayMillis * 0.5 + Math.random() * probeDelayMillis * 0.5);
+        try {
+            getConnectExecutor().schedule(new Runnable() {
+                public void run() {
+                    try {
+                        probe();
+                    }
+                    catch (Throwable t) {
+                        logger.error("nsqd probe error", t);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            isProbing = false; //publisher stopped
+        }
+    }
+
+    private void probe() {
+        synchronized (this) {
+            if (isStopping) {
+                isProbing = false;
+                return;
+            }
+        }
+        PubConnection primary = null;
+        try {
+            primary = open(nsqd);
+        }
+        catch (Exception e) {
+            logger.debug("nsqd probe failed:{} {}", nsqd, e.toString());
+        }
+        PubConnection failover = null;
+        if (primary == null && failoverNsqd != null && getCurrentConnection() == null) {
+            try {
+                failover = open(failoverNsqd);
+            }
+            catch (Exception e) {
+                logger.debug("failover nsqd probe failed:{} {}", failoverNsqd, e.toString());
+            }
+        }
+        PubConnection replaced = null;
+        synchronized (this) {
+            if (isStopping) {
+                isProbing = false;
+                Util.closeQuietly(primary);
+                Util.closeQuietly(failover);
+                return;
+            }
+            if (primary != null) {
+                closeLanes();
+                replaced = con;
+                con = primary;
+                isFailover = false;
+                isProbing = false;
+                logger.info("using primary nsqd:{}", nsqd);
+                if (isWarmStandby && standby == null && replaced != null && replaced.getHost().equals(failoverNsqd)) {
+                    standby = replaced; //publishes in flight on it still complete
+                    replaced = null;
+                }
+            }
+            else {
+                if (failover != null) {
+                    if (con == null) {
+                        con = failover;
+                        isFailover = true;
+                        logger.info("using failover nsqd:{}", failoverNsqd);
+                    }
+                    else {
+                        replaced = failover;
+                    }
+                }
+                scheduleProbe();
+            }
+        }
+        //publishes in flight on the old connection fail and are retried on the new one
+        Util.closeQuietly(replaced);
+    }
+
+    private synchronized PubConnection getCurrentConnection() {
+        return con;
+    }
+
+    /**
+     * Keeps a connection to the failover nsqd open and heartbeating while publishing to the primary,
+     * so failing over does not wait for connecting, IDENTIFY, TLS or AUTH.
+     */
+    public synchronized void setWarmStandby(boolean isWarmStandby) {
+        checkState(failoverNsqd != null, "no failoverNsqd configured");
+        checkState(!isStopping, "publisher stopped");
+        if (isWarmStandby && standbyTask == null) {
+            standbyTask = getConnectExecutor().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        checkStandby();
+                    }
+                    catch (Throwable t) {
+                        logger.error("standby check error", t);
+                    }
+                }
+            }, 0, STANDBY_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        else if (!isWarmStandby && standbyTask != null) {
+            standbyTask.cancel(false);
+            standbyTask = null;
+            Util.closeQuietly(standby);
+            standby = null;
+        }
+        this.isWarmStandby = isWarmStandby;
+    }
+
+    public synchronized boolean isWarmStandby() {
+        return isWarmStandby;
+    }
+
+    private void checkStandby() {
+        if (!isStandbyNeeded()) {
+            return;
+        }
+        PubConnection standbyCon;
+        try {
+            standbyCon = open(failoverNsqd);
+        }
+        catch (Exception e) {
+            logger.warn("unable to connect standby failover nsqd:{} {}", failoverNsqd, e.toString());
+            return;
+        }
+        synchronized (this) {
+            if (isStandbyNeeded()) {
+                standby = standbyCon;
+                standbyCon = null;
+            }
+        }
+        Util.closeQuietly(standbyCon);
+    }
+
+    private synchronized boolean isStandbyNeeded() {
+        return isWarmStandby && !isStopping && !isFailover && standby == null;
     }
 
     public synchronized void connectionClosed(PubConnection closedCon) {
+        AtomicReferenceArray<PubConnection> laneCons = lanes;
+        if (laneCons != null) {
+            for (int i = 0; i < laneCons.length(); i++) {
+                laneCons.compareAndSet(i, closedCon, null);
+            }
+        }
         if (con == closedCon) {
             con = null;
             logger.debug("removed closed publisher connection:{}", closedCon.getHost());
         }
+        else if (standby == closedCon) {
+            standby = null;
+            logger.debug("removed closed standby connection:{}", closedCon.getHost());
+        }
+    }
+
+    synchronized PubConnection getConnection() throws IOException {
+        checkConnection();
+        return con;
+    }
+
+    /**
+     * With topic lanes each topic always uses the same connection, lane 0 is the main connection.
+     * Lanes connect to the same nsqd as the main connection and are closed when it moves to another nsqd.
+     */
+    PubConnection getConnection(String topic) throws IOException {
+        AtomicReferenceArray<PubConnection> laneCons = lanes;
+        if (laneCons == null) {
+            return getConnection();
+        }
+        int lane = (topic.hashCode() & Integer.MAX_VALUE) % (laneCons.length() + 1);
+        if (lane == 0) {
+            return getConnection();
+        }
+        PubConnection laneCon = laneCons.get(lane - 1);
+        return laneCon != null ? laneCon : connectLane(laneCons, lane - 1);
     }
 
-    public synchronized void publish(String topic, byte[] data) {
+    //connects without the publisher lock, if another thread connects the lane first its connection is used
+    private PubConnection connectLane(AtomicReferenceArray<PubConnection> laneCons, int i) throws IOException {
+        HostAndPort host = getConnection().getHost();
+        PubConnection laneCon = open(host);
+        if (!laneCons.compareAndSet(i, null, laneCon)) {
+            laneCon.close();
+            laneCon = laneCons.get(i);
+            return laneCon != null ? laneCon : getConnection();
+        }
+        if (!host.equals(getCurrentHost()) || lanes != laneCons) {
+            //moved to another nsqd while connecting
+            laneCons.compareAndSet(i, laneCon, null);
+            laneCon.close();
+            return getConnection();
+        }
+        return laneCon;
+    }
+
+    @GuardedBy("this")
+    private void closeLanes() {
+        AtomicReferenceArray<PubConnection> laneCons = lanes;
+        if (laneCons != null) {
+            for (int i = 0; i < laneCons.length(); i++) {
+                Util.closeQuietly(laneCons.getAndSet(i, null));
+            }
+        }
+    }
+
+    private synchronized HostAndPort getCurrentHost() {
+        return con != null ? con.getHost() : null;
+    }
+
+    /**
+     * Spreads topics over this many connections to the nsqd, so a slow publish to one topic does not
+     * hold up publishes to topics on other lanes. Messages for a topic stay in order on one lane.
+     * Defaults to 1, every topic shares one connection.
+     */
+    public synchronized void setTopicLanes(int laneCount) {
+        checkArgument(laneCount > 0);
+        closeLanes();
+        lanes = laneCount == 1 ? null : new AtomicReferenceArray<PubConnection>(laneCount - 1);
+    }
+
+    public int getTopicLanes() {
+        AtomicReferenceArray<PubConnection> laneCons = lanes;
+        return laneCons == null ? 1 : laneCons.length() + 1;
+    }
+
+    /**
+     * Publishes synchronously, returns after nsqd responds OK.
+     * The publisher lock is not held while waiting for the response, so with maxInFlight > 1
+     * publishes from multiple threads are pipelined on the connection.
+     */
+    public void publish(String topic, byte[] data) {
         checkNotNull(topic);
         checkNotNull(data);
         checkArgument(data.length > 0);
+        checkMessageSize(data);
+        if (isSpooling()) {
+            spool(topic, data);
+            return;
+        }
+        PubConnection pubCon = null;
+        try {
+            pubCon = getConnection(topic);
+            pubCon.publish(topic, data);
+        }
+        catch (Exception e) {
+            logger.error("publish error with:{}", pubCon != null ? pubCon.getHost() : nsqd, e);
+            checkNotRejected(e);
+            publishFailover(pubCon, topic, data);
+        }
+    }
+
+    /**
+     * Publishes the remaining bytes of the buffer synchronously without copying them to the heap first,
+     * the buffer position is not changed. The bytes are only copied if the publish fails over.
+     */
+    public void publish(String topic, ByteBuffer data) {
+        checkNotNull(topic);
+        checkNotNull(data);
+        checkArgument(data.remaining() > 0);
+        checkMessageSize(data.remaining());
+        if (isSpooling()) {
+            spool(topic, toBytes(data));
+            return;
+        }
+        PubConnection pubCon = null;
+        try {
+            pubCon = getConnection(topic);
+            pubCon.publish(topic, data);
+        }
+        catch (Exception e) {
+            logger.error("publish error with:{}", pubCon != null ? pubCon.getHost() : nsqd, e);
+            checkNotRejected(e);
+            publishFailover(pubCon, topic, toBytes(data));
+        }
+    }
+
+    /**
+     * Publishes length bytes of data starting at offset synchronously, without copying them.
+     */
+    public void publish(String topic, byte[] data, int offset, int length) {
+        checkNotNull(data);
+        publish(topic, ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * Streams length bytes into a PUB, for messages too large to comfortably hold in memory.
+     * The bytes are copied to the connection through a small reused buffer and the connection is held
+     * for the whole transfer, use topic lanes to keep other topics moving.
+     * Streamed publishes can't be replayed so they never fail over or spool, a failure throws NSQException.
+     */
+    public void publish(String topic, InputStream data, int length) {
+        checkNotNull(topic);
+        checkNotNull(data);
+        checkArgument(length > 0);
+        checkMessageSize(length);
+        try {
+            getConnection(topic).publish(topic, data, length);
+        }
+        catch (Exception e) {
+            throw new NSQException("streaming publish failed", e);
+        }
+    }
+
+    /**
+     * Streams length bytes of the file starting at position into a PUB, see publish(String, InputStream, int).
+     * With NIO read threads (see Client.setNioReadThreads) plain tcp connections send the file with transferTo,
+     * without copying it through the heap. The channel position is not changed.
+     */
+    public void publish(String topic, FileChannel data, long position, int length) {
+        checkNotNull(topic);
+        checkNotNull(data);
+        checkArgument(position >= 0);
+        checkArgument(length > 0);
+        checkMessageSize(length);
         try {
-            checkConnection();
-            con.publish(topic, data);
+            getConnection(topic).publish(topic, data, position, length);
         }
         catch (Exception e) {
-            logger.error("publish error with:{}", isFailover ? failoverNsqd : nsqd, e);
-            publishFailover(topic, data);
+            throw new NSQException("streaming publish failed", e);
         }
     }
 
-    public synchronized void publishDeferred(String topic, byte[] data, long delay, TimeUnit unit) {
+    private static byte[] toBytes(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+
+    public void publishDeferred(String topic, byte[] data, long delay, TimeUnit unit) {
         checkNotNull(topic);
         checkNotNull(data);
         checkArgument(data.length > 0);
+        checkMessageSize(data);
         checkArgument(delay > 0);
         checkNotNull(unit);
         try {
-            checkConnection();
-            con.publishDeferred(topic, data, unit.toMillis(delay));
+            getConnection(topic).publishDeferred(topic, data, unit.toMillis(delay));
         }
         catch (Exception e) {
             //deferred publish never fails over
@@ -117,65 +511,627 @@ public class Publisher extends BasePubSub {
         }
     }
 
-    public synchronized void publish(String topic, List<byte[]> dataList) {
+    public void publish(String topic, List<byte[]> dataList) {
         checkNotNull(topic);
         checkNotNull(dataList);
         checkArgument(dataList.size() > 0);
+        for (byte[] data : dataList) {
+            checkMessageSize(data);
+        }
+        if (isSpooling()) {
+            for (byte[] data : dataList) {
+                spool(topic, data);
+            }
+            return;
+        }
+        PubConnection pubCon = null;
         try {
-            checkConnection();
-            con.publish(topic, dataList);
+            pubCon = getConnection(topic);
+            pubCon.publish(topic, dataList);
         }
         catch (Exception e) {
-            logger.error("publish error with:{}", isFailover ? failoverNsqd : nsqd, e);
-            for (byte[] data : dataList) {
-                publishFailover(topic, data);
+            logger.error("publish error with:{}", pubCon != null ? pubCon.getHost() : nsqd, e);
+            List<byte[]> unpublished = unpublished(e, dataList);
+            if (isTooBig(e)) {
+                try {
+                    //nsqd closes the connection after a fatal E_BAD_BODY or E_BAD_MESSAGE, noticed asynchronously
+                    replaceConnection(pubCon);
+                }
+                catch (Exception reconnectError) {
+                    logger.error("reconnect error", reconnectError);
+                }
+                for (byte[] data : unpublished) {
+                    checkMessageSize(data); //fails the rest of the list, as it would have with the limit known up front
+                }
+                try {
+                    getConnection(topic).publish(topic, unpublished); //split with the limit just learned
+                    return;
+                }
+                catch (Exception retryError) {
+                    logger.error("publish retry error", retryError);
+                    checkNotRejected(retryError);
+                    unpublished = unpublished(retryError, unpublished);
+                }
+            }
+            else {
+                checkNotRejected(e);
+            }
+            for (byte[] data : unpublished) {
+                publishFailover(pubCon, topic, data);
             }
         }
     }
 
-    @GuardedBy("this")
-    private void publishFailover(String topic, byte[] data) {
+    //MPUBs nsqd accepted before another one failed are not sent again
+    private static List<byte[]> unpublished(Exception e, List<byte[]> dataList) {
+        return e instanceof PartialPublishException ? ((PartialPublishException) e).getUnpublished() : dataList;
+    }
+
+    /**
+     * Closes a connection nsqd rejected and connects its replacement to the same nsqd, so a retry doesn't get
+     * the dead connection. A lane is reconnected by the next getConnection for its topics.
+     * Connects without the publisher lock, if another thread connects first its connection is kept.
+     */
+    void replaceConnection(PubConnection failedCon) throws IOException {
+        Util.closeQuietly(failedCon);
+        int lane = laneIndex(failedCon);
+        if (lane >= 0) {
+            lanes.compareAndSet(lane, failedCon, null);
+            return;
+        }
+        synchronized (this) {
+            if (con != failedCon || isStopping) {
+                return;
+            }
+            con = null;
+        }
+        PubConnection replacement = open(failedCon.getHost());
+        synchronized (this) {
+            if (con == null && !isStopping) {
+                con = replacement;
+                return;
+            }
+        }
+        replacement.close();
+    }
+
+    private void checkMessageSize(byte[] data) {
+        checkMessageSize(data.length);
+    }
+
+    private void checkMessageSize(int size) {
+        int max = maxMessageSize;
+        if (max > 0 && size > max) {
+            throw new NSQException(String.format("message too large for nsqd. size:%d max:%d", size, max));
+        }
+    }
+
+    private static boolean isTooBig(Exception e) {
+        return e.getMessage() != null && TOO_BIG.matcher(e.getMessage()).find();
+    }
+
+    //an MPUB over the body limit nsqd reported, the messages go through once split smaller
+    static boolean isBodyTooBig(Throwable e) {
+        Matcher m = TOO_BIG.matcher(e.getMessage() != null ? e.getMessage() : "");
+        return m.find() && "body".equals(m.group(1));
+    }
+
+    /**
+     * @return true if nsqd answered with an error, rather than the connection failing.
+     * Another nsqd or the spool would get the same answer, so rejected publishes don't fail over or spool.
+     */
+    static boolean isRejected(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && REJECTED.matcher(t.getMessage()).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkNotRejected(Exception e) {
+        if (isRejected(e)) {
+            throw new NSQException("publish rejected by nsqd", e);
+        }
+    }
+
+    /**
+     * Called with error responses, nsqd reports its limits when a message or MPUB body is too large.
+     */
+    void learnLimits(String response) {
+        Matcher m = TOO_BIG.matcher(response);
+        if (m.find()) {
+            int limit = Integer.parseInt(m.group(2));
+            if ("body".equals(m.group(1))) {
+                maxBodySize = limit;
+            }
+            else {
+                maxMessageSize = limit;
+            }
+            logger.info("nsqd max {} size:{}", m.group(1), limit);
+        }
+    }
+
+    int getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * MPUBs larger than this are split into several pipelined MPUBs. Defaults to the nsqd default
+     * of 5MB, and is lowered automatically if nsqd responds that a body was too big.
+     */
+    public void setMaxBodySize(int maxBodySize) {
+        checkArgument(maxBodySize > 0);
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Messages larger than this are rejected with NSQException before being sent. Defaults to unknown
+     * until nsqd responds that a message was too big, set it to match nsqd max-msg-size to fail fast
+     * without nsqd closing the connection.
+     */
+    public void setMaxMessageSize(int maxMessageSize) {
+        checkArgument(maxMessageSize >= 0);
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    //the publisher lock is only held to swap connections, publishes to other topics and lanes keep going
+    void publishFailover(PubConnection failedCon, String topic, byte[] data) {
+        PubConnection pubCon = null;
         try {
-            if (failoverNsqd == null) {
-                logger.warn("publish failed but no failoverNsqd configured. Will wait and retry once.");
-                Util.sleepQuietly(10000); //could do exponential backoff or make configurable
-                connect(nsqd);
+            if (isStopping) {
+                throw new NSQException("publisher stopped");
+            }
+            int lane = laneIndex(failedCon);
+            if (lane >= 0) {
+                if (reconnectLane(lane, failedCon, topic, data)) {
+                    return;
+                }
+                failedCon = getCurrentConnection(); //the nsqd is likely down, fail over the main connection
             }
-            else if (!isFailover) {
-                failoverStart = Util.clock();
-                isFailover = true;
-                connect(failoverNsqd);
-                logger.info("using failover nsqd:{}", failoverNsqd);
+            if (!failOver(failedCon)) {
+                spool(topic, data);
+                return;
             }
-            con.publish(topic, data);
+            pubCon = getConnection(topic);
+            pubCon.publish(topic, data); //on the topic's lane, to keep its order
         }
         catch (Exception e) {
-            Util.closeQuietly(con);
+            Util.closeQuietly(pubCon);
+            publishFailed(pubCon);
+            if (spool != null && !isStopping && !isRejected(e)) {
+                spool(topic, data);
+                return;
+            }
+            throw e instanceof NSQException ? (NSQException) e : new NSQException("publish failed", e);
+        }
+    }
+
+    /**
+     * Moves the main connection off a failed nsqd, to the standby or a new connection to the failover nsqd.
+     * Without a failover nsqd the primary is reconnected once right away, so a restart or idle disconnect
+     * doesn't fail publishes, and probed in the background if that fails.
+     * Threads failing over at the same time wait on failoverLock and use the connection the first one made,
+     * the publisher lock is not held while connecting.
+     * @return false if the message should be spooled
+     */
+    private boolean failOver(PubConnection failedCon) throws IOException {
+        synchronized (failoverLock) {
+            boolean isReconnect = false;
+            HostAndPort host;
+            synchronized (this) {
+                if (con != null && con != failedCon) {
+                    logger.debug("connection already replaced after failure, retrying with:{}", con.getHost());
+                    return true;
+                }
+                Util.closeQuietly(con);
+                con = null;
+                closeLanes();
+                if (failoverNsqd != null && !isFailover) {
+                    startProbing();
+                    isFailover = true;
+                    if (standby != null) {
+                        con = standby;
+                        standby = null;
+                        logger.info("using failover nsqd:{}", failoverNsqd);
+                        return true;
+                    }
+                    host = failoverNsqd;
+                }
+                else if (isProbing) {
+                    return unavailable(null);
+                }
+                else {
+                    isReconnect = true;
+                    host = nsqd;
+                }
+            }
+            PubConnection newCon;
+            try {
+                newCon = open(host);
+            }
+            catch (IOException e) {
+                if (!isReconnect) {
+                    throw e;
+                }
+                synchronized (this) {
+                    startProbing();
+                }
+                return unavailable(e);
+            }
+            synchronized (this) {
+                if (isStopping) {
+                    newCon.close();
+                    throw new NSQException("publisher stopped");
+                }
+                if (con != null) {
+                    newCon.close(); //the probe connected first
+                    return true;
+                }
+                con = newCon;
+            }
+            logger.info(isReconnect ? "reconnected to nsqd:{}" : "using failover nsqd:{}", host);
+            return true;
+        }
+    }
+
+    //nsqd is being probed in the background
+    private boolean unavailable(Exception cause) {
+        if (spool != null) {
+            return false;
+        }
+        throw new NSQException("nsqd unavailable, reconnecting in background. nsqd:" + nsqd, cause);
+    }
+
+    private synchronized void publishFailed(PubConnection failedCon) {
+        if (failedCon != null && con == failedCon) {
             con = null;
-            isFailover = false;
-            throw new NSQException("publish failed", e);
+            closeLanes();
+        }
+        if (con == null) {
+            startProbing();
+        }
+    }
+
+    /**
+     * @return the index of the lane using the connection, -1 if it is not a current lane
+     */
+    private int laneIndex(PubConnection pubCon) {
+        AtomicReferenceArray<PubConnection> laneCons = lanes;
+        if (laneCons != null && pubCon != null) {
+            for (int i = 0; i < laneCons.length(); i++) {
+                if (laneCons.get(i) == pubCon) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces a failed lane connection with a new one to the current nsqd and publishes on it,
+     * the topic stays on its lane.
+     * @return false if the new lane failed too
+     */
+    private boolean reconnectLane(int lane, PubConnection failedCon, String topic, byte[] data) {
+        AtomicReferenceArray<PubConnection> laneCons = lanes;
+        laneCons.compareAndSet(lane, failedCon, null);
+        Util.closeQuietly(failedCon);
+        try {
+            getConnection(topic).publish(topic, data);
+            return true;
+        }
+        catch (Exception e) {
+            logger.warn("lane reconnect failed, failing over. topic:{} {}", topic, e.toString());
+            Util.closeQuietly(laneCons.getAndSet(lane, null));
+            return false;
+        }
+    }
+
+    /**
+     * Spool messages to disk when nsqd can't be reached, instead of failing the publish.
+     * Publishes nsqd rejects with an error response are never spooled, they fail.
+     * Once a message is spooled, publishes go to the spool until it has been replayed so order is kept.
+     * A spooled batch nsqd rejects during replay is moved aside, see Spool.getRejectedCount.
+     * Spooled messages are replayed with MPUB in the background, including messages left in the directory
+     * by a previous run. Deferred publishes are never spooled. Must be called before publishing.
+     * @param dir directory for spool files, should not be shared with other publishers
+     * @param maxBytes disk space limit, publishes fail when the spool is full
+     */
+    public synchronized void setSpool(File dir, long maxBytes) throws IOException {
+        checkState(spool == null, "spool already set");
+        spool = new Spool(dir, maxBytes);
+        //replay blocks on nsqd, its own thread keeps it from holding up batch sends
+        spoolExecutor = Executors.newSingleThreadScheduledExecutor(Util.threadFactory("nsq-spool"));
+        spoolExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                replaySpool();
+            }
+        }, SPOOL_REPLAY_INTERVAL_MILLIS, SPOOL_REPLAY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        logger.info("publishing with {}", spool);
+    }
+
+    /**
+     * @return the spool, or null if setSpool was not called. Use it to monitor spool depth and replay rate.
+     */
+    public Spool getSpool() {
+        return spool;
+    }
+
+    boolean isSpooling() {
+        Spool s = spool;
+        return s != null && !s.isEmpty();
+    }
+
+    void spool(String topic, byte[] data) {
+        try {
+            spool.append(topic, data);
+        }
+        catch (IOException e) {
+            throw new NSQException("spool write failed", e);
+        }
+    }
+
+    private void replaySpool() {
+        Spool.Batch batch;
+        while (!isStopping && (batch = spool.nextBatch(SPOOL_REPLAY_BATCH_SIZE)) != null) {
+            try {
+                getConnection(batch.getTopic()).publish(batch.getTopic(), batch.getMessages());
+            }
+            catch (Exception e) {
+                //a body over the limit nsqd just reported is split smaller on the next try
+                if (!isRejected(e) || isBodyTooBig(e)) {
+                    logger.warn("spool replay failed, will retry. {}", spool, e);
+                    return;
+                }
+                logger.error("nsqd rejected spooled messages, moving them aside. topic:{}", batch.getTopic(), e);
+                try {
+                    spool.reject(batch);
+                }
+                catch (IOException rejectError) {
+                    logger.error("unable to move rejected messages, will retry. {}", spool, rejectError);
+                    return;
+                }
+                continue;
+            }
+            spool.commit(batch);
+        }
+    }
+
+    /**
+     * Publishes without waiting for nsqd to respond, the returned future completes when nsqd responds OK.
+     * Messages are added to a bounded queue and sent by a background thread, see setAsyncConfig.
+     * Set maxInFlight above 1 to send more than one message per network round trip.
+     */
+    public PublishFuture publishAsync(String topic, byte[] data) {
+        checkNotNull(topic);
+        checkNotNull(data);
+        checkArgument(data.length > 0);
+        checkMessageSize(data);
+        return getPublishQueue().publish(topic, data);
+    }
+
+    public PublishFuture publishAsync(String topic, List<byte[]> dataList) {
+        checkNotNull(topic);
+        checkNotNull(dataList);
+        checkArgument(dataList.size() > 0);
+        for (byte[] data : dataList) {
+            checkMessageSize(data);
         }
+        return getPublishQueue().publish(topic, dataList);
     }
 
-    public synchronized void publishBuffered(String topic, byte[] data) {
+    public PublishFuture publishDeferredAsync(String topic, byte[] data, long delay, TimeUnit unit) {
         checkNotNull(topic);
         checkNotNull(data);
         checkArgument(data.length > 0);
+        checkMessageSize(data);
+        checkArgument(delay > 0);
+        checkNotNull(unit);
+        return getPublishQueue().publishDeferred(topic, data, unit.toMillis(delay));
+    }
+
+    private PublishQueue getPublishQueue() {
+        PublishQueue queue = publishQueue;
+        if (queue == null) {
+            synchronized (this) {
+                if (isStopping) {
+                    throw new NSQException("publisher stopped");
+                }
+                if (publishQueue == null) {
+                    publishQueue = new PublishQueue(this, asyncQueueSize, asyncOverflowPolicy);
+                }
+                queue = publishQueue;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Configures the queue used by publishAsync, must be called before the first publishAsync.
+     * @param queueSize maximum number of messages (or lists of messages) waiting to be sent
+     * @param policy what to do when the queue is full
+     */
+    public synchronized void setAsyncConfig(int queueSize, OverflowPolicy policy) {
+        checkArgument(queueSize > 0);
+        checkNotNull(policy);
+        checkState(publishQueue == null, "async config must be set before publishAsync is called");
+        this.asyncQueueSize = queueSize;
+        this.asyncOverflowPolicy = policy;
+    }
+
+    /**
+     * Adds the message to a batch for the topic, see setBatchConfig. Usually returns without waiting for nsqd,
+     * the call that fills a batch sends it with MPUB and throws NSQException if that fails.
+     * Batches sent after their delay are sent by a background thread.
+     */
+    public void publishBuffered(String topic, byte[] data) {
+        checkNotNull(topic);
+        checkNotNull(data);
+        checkArgument(data.length > 0);
+        checkMessageSize(data);
+        if (!isBuffered) {
+            isBuffered = true;
+        }
         Batcher batcher = batchers.get(topic);
         if (batcher == null) {
-            batcher = new Batcher(this, topic, DEFAULT_MAX_BATCH_SIZE, DEFUALT_MAX_BATCH_DELAY);
-            batchers.put(topic, batcher);
+            int targetLatency = batchTargetLatencyMillis;
+            Batcher newBatcher = targetLatency > 0
+                    ? new Batcher(this, topic, MAX_ADAPTIVE_BATCH_SIZE, targetLatency, targetLatency)
+                    : new Batcher(this, topic, DEFAULT_MAX_BATCH_SIZE, DEFUALT_MAX_BATCH_DELAY);
+            batcher = batchers.putIfAbsent(topic, newBatcher);
+            if (batcher == null) {
+                batcher = newBatcher;
+            }
         }
         batcher.publish(data);
     }
 
-    public synchronized void setBatchConfig(String topic, int maxSizeBytes, int maxDelayMillis) {
+    public void setBatchConfig(String topic, int maxSizeBytes, int maxDelayMillis) {
+        Batcher old = batchers.put(topic, new Batcher(this, topic, maxSizeBytes, maxDelayMillis));
+        if (old != null) {
+            old.sendBatch(); //anything added to the old batcher after this is sent by its delayed send
+        }
+    }
+
+    /**
+     * Tunes the batch size and delay for the topic from its publish rate and nsqd response time,
+     * aiming to publish each message within targetLatencyMillis. Quiet topics are sent sooner,
+     * busy topics in larger batches.
+     */
+    public void setAdaptiveBatchConfig(String topic, int targetLatencyMillis) {
+        Batcher old = batchers.put(topic, new Batcher(this, topic, MAX_ADAPTIVE_BATCH_SIZE, targetLatencyMillis, targetLatencyMillis));
+        if (old != null) {
+            old.sendBatch();
+        }
+    }
+
+    /**
+     * Uses adaptive batching, see setAdaptiveBatchConfig, for topics first published after this call
+     * that don't have their own batch config. 0 turns it off.
+     */
+    public void setAdaptiveBatching(int targetLatencyMillis) {
+        checkArgument(targetLatencyMillis == 0 || targetLatencyMillis > Batcher.MIN_ADAPTIVE_DELAY_MILLIS);
+        this.batchTargetLatencyMillis = targetLatencyMillis;
+    }
+
+    /**
+     * Limits the memory used by publishBuffered across all topics, counting messages waiting in batches
+     * and batches being published. Must be called before the first publishBuffered.
+     * @param maxBytes 0 for no limit
+     * @param policy what to do when a message doesn't fit: BLOCK waits for batches to be sent,
+     * REJECT throws NSQException, DROP discards the new message, DROP_OLDEST discards the oldest waiting messages
+     */
+    public synchronized void setBufferLimit(long maxBytes, OverflowPolicy policy) {
+        checkArgument(maxBytes >= 0);
+        checkNotNull(policy);
+        checkState(!isBuffered, "buffer limit must be set before publishBuffered is called");
+        this.maxBufferBytes = maxBytes;
+        this.bufferPolicy = policy;
+    }
+
+    //returns false if the message should be dropped
+    boolean reserveBuffer(Batcher batcher, int bytes) {
+        long max = maxBufferBytes;
+        if (max == 0) {
+            return true;
+        }
+        if (bytes > max) {
+            throw new NSQException("message larger than buffer limit. size:" + bytes);
+        }
+        while (true) {
+            long current = bufferedBytes.get();
+            if (current + bytes <= max) {
+                if (bufferedBytes.compareAndSet(current, current + bytes)) {
+                    return true;
+                }
+                continue;
+            }
+            switch (bufferPolicy) {
+                case REJECT:
+                    throw new NSQException("publish buffer full. bytes:" + current);
+                case DROP:
+                    droppedCount.incrementAndGet();
+                    return false;
+                case DROP_OLDEST:
+                    dropOldest(batcher, current + bytes - max);
+                    break;
+                default:
+                    awaitBuffer(bytes, max);
+            }
+        }
+    }
+
+    private void dropOldest(Batcher batcher, long bytes) {
+        long freed = batcher.dropOldest(bytes);
+        for (Batcher other : batchers.values()) {
+            if (freed >= bytes) {
+                break;
+            }
+            freed += other.dropOldest(bytes - freed);
+        }
+        if (freed < bytes) {
+            awaitBuffer(bytes - freed, maxBufferBytes); //the rest is being published
+        }
+    }
+
+    private void awaitBuffer(long bytes, long max) {
+        synchronized (bufferMonitor) {
+            while (bufferedBytes.get() + bytes > max) {
+                if (isStopping) {
+                    throw new NSQException("publisher stopped");
+                }
+                try {
+                    bufferMonitor.wait(100);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new NSQException("publish interrupted");
+                }
+            }
+        }
+    }
+
+    void releaseBuffer(long bytes) {
+        if (maxBufferBytes > 0) {
+            bufferedBytes.addAndGet(-bytes);
+            synchronized (bufferMonitor) {
+                bufferMonitor.notifyAll();
+            }
+        }
+    }
+
+    void addDropped(int count) {
+        droppedCount.addAndGet(count);
+    }
+
+    /**
+     * @return bytes buffered by publishBuffered for the topic that are waiting to be sent
+     */
+    public long getBufferedBytes(String topic) {
         Batcher batcher = batchers.get(topic);
-        if (batcher != null) {
-            batcher.sendBatch();
+        return batcher != null ? batcher.getBufferedBytes() : 0;
+    }
+
+    /**
+     * @return bytes buffered by publishBuffered for all topics, waiting or being sent if a buffer limit is set
+     */
+    public long getBufferedBytes() {
+        if (maxBufferBytes > 0) {
+            return bufferedBytes.get();
         }
-        batcher = new Batcher(this, topic, maxSizeBytes, maxDelayMillis);
-        batchers.put(topic, batcher);
+        long total = 0;
+        for (Batcher batcher : batchers.values()) {
+            total += batcher.getBufferedBytes();
+        }
+        return total;
+    }
+
+    /**
+     * @return messages discarded because the publishBuffered buffer was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
     }
 
     synchronized ScheduledExecutorService getBatchExecutor() {
@@ -185,28 +1141,90 @@ public class Publisher extends BasePubSub {
         return batchExecutor;
     }
 
+    //connects block for up to the connect timeout, they stay off the client scheduler that runs heartbeats and acks
+    synchronized ScheduledExecutorService getConnectExecutor() {
+        if (connectExecutor == null) {
+            connectExecutor = Executors.newSingleThreadScheduledExecutor(Util.threadFactory("nsq-connect"));
+        }
+        return connectExecutor;
+    }
+
     @Override
-    public synchronized void stop() {
+    public void stop() {
+        //sent without the publisher lock, failing over takes failoverLock before it
         for (Batcher batcher : batchers.values()) {
             batcher.sendBatch();
         }
-        super.stop();
-        Util.closeQuietly(con);
-        con = null;
-        if (batchExecutor != null) {
-            Util.shutdownAndAwaitTermination(batchExecutor, 40, TimeUnit.MILLISECONDS);
-        }
-        if (client.isLonePublisher(this)) { // convenience, prevents needing to call client.stop() to stop all threads
-            Util.shutdownAndAwaitTermination(client.getSchedExecutor(), 40, TimeUnit.MILLISECONDS);
+        synchronized (this) {
+            if (publishQueue != null) {
+                publishQueue.stop();
+            }
+            super.stop();
+            Util.closeQuietly(con);
+            con = null;
+            closeLanes();
+            if (standbyTask != null) {
+                standbyTask.cancel(false);
+                standbyTask = null;
+            }
+            Util.closeQuietly(standby);
+            standby = null;
+            if (batchExecutor != null) {
+                Util.shutdownAndAwaitTermination(batchExecutor, 40, TimeUnit.MILLISECONDS);
+            }
+            if (connectExecutor != null) {
+                Util.shutdownAndAwaitTermination(connectExecutor, 40, TimeUnit.MILLISECONDS);
+            }
+            if (spoolExecutor != null) {
+                Util.shutdownAndAwaitTermination(spoolExecutor, 40, TimeUnit.MILLISECONDS);
+            }
+            if (client.isLonePublisher(this)) { // convenience, prevents needing to call client.stop() to stop all threads
+                Util.shutdownAndAwaitTermination(client.getSchedExecutor(), 40, TimeUnit.MILLISECONDS);
+            }
         }
     }
 
+    /**
+     * @deprecated the primary nsqd is probed in the background and used again as soon as it accepts a connection
+     */
+    @Deprecated
     public synchronized int getFailoverDurationSecs() {
         return failoverDurationSecs;
     }
 
+    /**
+     * @deprecated no longer has an effect, see setReconnectBackoff
+     */
+    @Deprecated
     public synchronized void setFailoverDurationSecs(int failoverDurationSecs) {
         this.failoverDurationSecs = failoverDurationSecs;
     }
 
+    /**
+     * After a publish fails the primary nsqd is probed in the background, waiting between attempts starting
+     * at initDelayMillis and doubling up to maxDelayMillis, with jitter.
+     * A publish that fails without a failover nsqd first reconnects to the primary once, without waiting.
+     * While probing, publishes go to the failover nsqd or the spool if configured, otherwise they fail right away.
+     */
+    public synchronized void setReconnectBackoff(int initDelayMillis, int maxDelayMillis) {
+        checkArgument(initDelayMillis > 0);
+        checkArgument(maxDelayMillis >= initDelayMillis);
+        this.probeInitDelayMillis = initDelayMillis;
+        this.probeMaxDelayMillis = maxDelayMillis;
+    }
+
+    public synchronized int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * The maximum number of publishes (PUB, DPUB or MPUB) written to a connection before nsqd responds.
+     * Defaults to 1, one round trip per publish. Larger values pipeline concurrent publishes on one connection.
+     * Takes effect on the next connection.
+     */
+    public synchronized void setMaxInFlight(int maxInFlight) {
+        checkArgument(maxInFlight > 0);
+        this.maxInFlight = maxInFlight;
+    }
+
 }
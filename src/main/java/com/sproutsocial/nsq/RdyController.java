@@ -0,0 +1,78 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sproutsocial.nsq.Util.checkArgument;
+
+/**
+ * Adjusts the maxInFlight of a subscription with additive increase, multiplicative decrease.
+ * Every interval, if messages were handled and the average handler latency and executor queue size
+ * are within their limits maxInFlight grows by a fiftieth of the range, if either is over it is halved.
+ * Handler threads only add to two atomics per message, or per batch for a BatchMessageHandler.
+ */
+@ThreadSafe
+class RdyController {
+
+    private final Subscription subscription;
+    private final int minInFlight;
+    private final int maxInFlight;
+    private final long targetLatencyNanos;
+    private final int maxQueueSize;
+    private final int increase;
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicInteger handledCount = new AtomicInteger();
+
+    static final int INTERVAL_MILLIS = 1000;
+
+    private static final Logger logger = LoggerFactory.getLogger(RdyController.class);
+
+    RdyController(Subscription subscription, int minInFlight, int maxInFlight, int targetLatencyMillis, int maxQueueSize) {
+        checkArgument(minInFlight > 0 && minInFlight <= maxInFlight);
+        checkArgument(targetLatencyMillis > 0);
+        checkArgument(maxQueueSize >= 0);
+        this.subscription = subscription;
+        this.minInFlight = minInFlight;
+        this.maxInFlight = maxInFlight;
+        this.targetLatencyNanos = targetLatencyMillis * 1000000L;
+        this.maxQueueSize = maxQueueSize;
+        this.increase = Math.max(1, (maxInFlight - minInFlight) / 50);
+    }
+
+    //called on a handler thread after every message, or by MessageBatcher after every batch
+    void handled(long nanos) {
+        latencyNanos.addAndGet(nanos);
+        handledCount.incrementAndGet();
+    }
+
+    void adjust() {
+        int count = handledCount.getAndSet(0);
+        long nanos = latencyNanos.getAndSet(0);
+        MessageHandler handler = subscription.getHandler();
+        if (handler instanceof BackoffHandler && ((BackoffHandler) handler).isBackoff()) {
+            return; //backoff owns maxInFlight until it recovers
+        }
+        Integer queueSize = subscription.getSubscriber().getExecutorQueueSize();
+        int current = subscription.getMaxInFlight();
+        int next;
+        if ((count > 0 && nanos / count > targetLatencyNanos) || (queueSize != null && queueSize > maxQueueSize)) {
+            next = Math.max(minInFlight, current / 2);
+        }
+        else if (count > 0) {
+            next = Math.min(maxInFlight, current + increase);
+        }
+        else {
+            next = Math.max(minInFlight, Math.min(maxInFlight, current)); //idle, only keep it in bounds
+        }
+        if (next != current) {
+            logger.debug("maxInFlight:{} handled:{} avgLatencyMillis:{} queueSize:{} {}", next, count,
+                    count > 0 ? nanos / count / 1000000 : 0, queueSize, subscription);
+            subscription.setMaxInFlight(next);
+        }
+    }
+
+}
@@ -0,0 +1,353 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sproutsocial.nsq.Util.checkArgument;
+import static com.sproutsocial.nsq.Util.checkNotNull;
+
+/**
+ * Append only disk spool for messages that could not be published, replayed with MPUB once nsqd is back.
+ * Messages are written to memory mapped segment files in a directory, so they survive a process restart
+ * and are replayed by the next Publisher using the same directory.
+ * <p>
+ * Segment layout: int readOffset, int writeOffset, then records of
+ * int length, short topicLength, topic (ascii), data.
+ * A segment is deleted once every record in it has been replayed.
+ * Batches nsqd rejects are moved to .rejected files with the same record layout (without the header),
+ * they are never replayed.
+ */
+@ThreadSafe
+public class Spool {
+
+    private final File dir;
+    private final long maxBytes;
+    private final int segmentSize;
+    @GuardedBy("this")
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    @GuardedBy("this")
+    private long nextSeq = 0;
+    private volatile int messageCount = 0;
+    private volatile long byteCount = 0;
+    private final AtomicLong replayedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final Ewma replayRate = new Ewma(10, TimeUnit.SECONDS);
+
+    private static final int HEADER_SIZE = 8;
+    private static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final String SUFFIX = ".spool";
+    private static final String REJECTED_SUFFIX = ".rejected";
+
+    private static final Logger logger = LoggerFactory.getLogger(Spool.class);
+
+    /**
+     * @param dir directory for segment files, created if needed. Existing segments are kept for replay.
+     * @param maxBytes disk space limit, publishes fail when the spool is full
+     */
+    public Spool(File dir, long maxBytes) throws IOException {
+        checkNotNull(dir);
+        checkArgument(maxBytes > HEADER_SIZE);
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.segmentSize = (int) Math.min(DEFAULT_SEGMENT_SIZE, maxBytes);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("unable to create spool directory:" + dir);
+        }
+        recover();
+    }
+
+    private synchronized void recover() throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("unable to list spool directory:" + dir);
+        }
+        Arrays.sort(files); //names are zero padded sequence numbers
+        for (File file : files) {
+            long seq = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+            Segment segment = new Segment(file, (int) file.length(), false);
+            segments.add(segment);
+            nextSeq = seq + 1;
+            messageCount += segment.countMessages();
+            byteCount += segment.writeOffset - segment.readOffset;
+        }
+        if (messageCount > 0) {
+            logger.info("recovered spool:{} messages:{} bytes:{}", dir, messageCount, byteCount);
+        }
+    }
+
+    public synchronized void append(String topic, byte[] data) throws IOException {
+        byte[] topicBytes = topic.getBytes(Util.US_ASCII);
+        int recordSize = 4 + 2 + topicBytes.length + data.length;
+        if (recordSize > segmentSize - HEADER_SIZE) {
+            throw new NSQException("message too large for spool. size:" + data.length);
+        }
+        Segment segment = segments.isEmpty() ? null : segments.getLast();
+        if (segment == null || segment.writeOffset + recordSize > segment.size) {
+            if ((long) (segments.size() + 1) * segmentSize > maxBytes) {
+                throw new NSQException("spool full. messages:" + messageCount + " dir:" + dir);
+            }
+            File file = new File(dir, String.format("%019d%s", nextSeq++, SUFFIX));
+            segment = new Segment(file, segmentSize, true);
+            segments.add(segment);
+        }
+        segment.append(topicBytes, data, recordSize);
+        messageCount++;
+        byteCount += recordSize;
+    }
+
+    /**
+     * @return the next messages to replay, all for the same topic, or null if the spool is empty.
+     * Call commit after they are published, until then the same batch is returned again.
+     */
+    synchronized Batch nextBatch(int maxBatchBytes) {
+        Segment segment = firstUnread();
+        if (segment == null) {
+            return null;
+        }
+        String topic = null;
+        List<byte[]> messages = new ArrayList<byte[]>();
+        int offset = segment.readOffset;
+        int bytes = 0;
+        while (offset < segment.writeOffset && bytes < maxBatchBytes) {
+            int length = segment.buf.getInt(offset);
+            byte[] topicBytes = new byte[segment.buf.getShort(offset + 4)];
+            segment.read(offset + 6, topicBytes);
+            String recordTopic = new String(topicBytes, Util.US_ASCII);
+            if (topic == null) {
+                topic = recordTopic;
+            }
+            else if (!topic.equals(recordTopic)) {
+                break;
+            }
+            byte[] data = new byte[length - 2 - topicBytes.length];
+            segment.read(offset + 6 + topicBytes.length, data);
+            messages.add(data);
+            bytes += data.length;
+            offset += 4 + length;
+        }
+        return new Batch(topic, messages, segment, offset, offset - segment.readOffset);
+    }
+
+    synchronized void commit(Batch batch) {
+        remove(batch);
+        replayedCount.addAndGet(batch.messages.size());
+        replayRate.update(batch.messages.size() * 1e9 / Math.max(System.nanoTime() - batch.createdNanos, 1));
+    }
+
+    /**
+     * Moves a batch nsqd rejected out of the way so replay continues with the messages after it.
+     * The messages are appended to a .rejected file named after the segment and offset they were read from.
+     */
+    synchronized void reject(Batch batch) throws IOException {
+        File file = new File(dir, batch.segment.file.getName() + "." + batch.segment.readOffset + REJECTED_SUFFIX);
+        byte[] topicBytes = batch.topic.getBytes(Util.US_ASCII);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        try {
+            for (byte[] data : batch.messages) {
+                out.writeInt(2 + topicBytes.length + data.length);
+                out.writeShort(topicBytes.length);
+                out.write(topicBytes);
+                out.write(data);
+            }
+        }
+        finally {
+            out.close();
+        }
+        remove(batch);
+        rejectedCount.addAndGet(batch.messages.size());
+        logger.warn("moved {} rejected messages for topic:{} to {}", batch.messages.size(), batch.topic, file);
+    }
+
+    @GuardedBy("this")
+    private void remove(Batch batch) {
+        batch.segment.setReadOffset(batch.endOffset);
+        messageCount -= batch.messages.size();
+        byteCount -= batch.byteCount;
+        firstUnread();
+    }
+
+    //deletes fully replayed segments, the last one is still being written so it is rewound instead
+    @GuardedBy("this")
+    private Segment firstUnread() {
+        while (!segments.isEmpty()) {
+            Segment segment = segments.getFirst();
+            if (segment.readOffset < segment.writeOffset) {
+                return segment;
+            }
+            if (segments.size() == 1) {
+                segment.rewind();
+                return null;
+            }
+            segments.removeFirst();
+            if (!segment.file.delete()) {
+                logger.warn("unable to delete spool segment:{}", segment.file);
+            }
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        return messageCount == 0;
+    }
+
+    /**
+     * @return messages waiting to be replayed
+     */
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * @return bytes waiting to be replayed, including record headers
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    public long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    /**
+     * @return messages nsqd rejected during replay, moved to .rejected files in the spool directory
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return messages replayed per second, moving average over about 10 seconds
+     */
+    public double getReplayRate() {
+        return replayRate.get();
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Spool %s messages:%d bytes:%d", dir, messageCount, byteCount);
+    }
+
+    static class Batch {
+        private final String topic;
+        private final List<byte[]> messages;
+        private final Segment segment;
+        private final int endOffset;
+        private final int byteCount;
+        private final long createdNanos = System.nanoTime();
+
+        Batch(String topic, List<byte[]> messages, Segment segment, int endOffset, int byteCount) {
+            this.topic = topic;
+            this.messages = messages;
+            this.segment = segment;
+            this.endOffset = endOffset;
+            this.byteCount = byteCount;
+        }
+
+        String getTopic() {
+            return topic;
+        }
+
+        List<byte[]> getMessages() {
+            return messages;
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        private final int size;
+        private final MappedByteBuffer buf;
+        private int readOffset;
+        private int writeOffset;
+
+        Segment(File file, int size, boolean isNew) throws IOException {
+            this.file = file;
+            this.size = size;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size); //stays valid after close
+            }
+            finally {
+                raf.close();
+            }
+            if (isNew) {
+                setReadOffset(HEADER_SIZE);
+                setWriteOffset(HEADER_SIZE);
+            }
+            else {
+                readOffset = buf.getInt(0);
+                writeOffset = buf.getInt(4);
+            }
+        }
+
+        void append(byte[] topicBytes, byte[] data, int recordSize) {
+            buf.putInt(writeOffset, recordSize - 4);
+            buf.putShort(writeOffset + 4, (short) topicBytes.length);
+            write(writeOffset + 6, topicBytes);
+            write(writeOffset + 6 + topicBytes.length, data);
+            setWriteOffset(writeOffset + recordSize); //after the record so a crash never exposes a partial one
+        }
+
+        int countMessages() {
+            int count = 0;
+            for (int offset = readOffset; offset < writeOffset; offset += 4 + buf.getInt(offset)) {
+                count++;
+            }
+            return count;
+        }
+
+        void read(int offset, byte[] dest) {
+            ByteBuffer dup = buf.duplicate();
+            dup.position(offset);
+            dup.get(dest);
+        }
+
+        private void write(int offset, byte[] src) {
+            ByteBuffer dup = buf.duplicate();
+            dup.position(offset);
+            dup.put(src);
+        }
+
+        void rewind() {
+            setWriteOffset(HEADER_SIZE); //write first, a crash in between leaves an empty segment
+            setReadOffset(HEADER_SIZE);
+        }
+
+        void setReadOffset(int offset) {
+            readOffset = offset;
+            buf.putInt(0, offset);
+        }
+
+        private void setWriteOffset(int offset) {
+            writeOffset = offset;
+            buf.putInt(4, offset);
+        }
+    }
+
+}
@@ -4,7 +4,17 @@ import net.jcip.annotations.GuardedBy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Note, the constructor registers a repeating task in the scheduler. The caller is responsible for invoking
@@ -18,12 +28,29 @@ class SubConnection extends Connection {
     private final String topic;
     private final int maxAttempts;
     private final int maxFlushDelayMillis;
-    private int inFlight = 0;
+    private final byte[] subCommand;
+    private final BodyPool bodyPool;
+    private byte[] readChunk; //copies into direct pooled bodies
+    private final AtomicInteger inFlight = new AtomicInteger(); //updated by the read thread without the lock
     private int maxInFlight = 0;
-    private int maxUnflushed = 0;
+    private volatile int maxUnflushed = 0;
+    private final AckQueue acks = new AckQueue(ACK_QUEUE_SIZE);
+    private final AtomicBoolean isDrainScheduled = new AtomicBoolean();
+    private final ThreadPoolExecutor ackWriter = newAckWriter();
 
     private long finishedCount = 0;
     private long requeuedCount = 0;
+    private volatile long receivedCount = 0; //only written by the read thread
+    private long lastReceivedCount = 0;
+    private final Ewma arrivalRate = new Ewma(15, TimeUnit.SECONDS);
+
+    private static final int ACK_QUEUE_SIZE = 4096;
+    private static final int ACK_WRITER_IDLE_SECS = 5;
+    private static final ThreadFactory ackThreadFactory = Util.threadFactory("nsq-ack");
+    private static final byte[] FIN = "FIN ".getBytes(Util.US_ASCII);
+    private static final byte[] REQ = "REQ ".getBytes(Util.US_ASCII);
+    private static final byte[] TOUCH = "TOUCH ".getBytes(Util.US_ASCII);
+    private static final byte[] RDY = "RDY ".getBytes(Util.US_ASCII);
 
     private static final Logger logger = LoggerFactory.getLogger(SubConnection.class);
 
@@ -36,6 +63,8 @@ class SubConnection extends Connection {
         this.topic = subscription.getTopic();
         this.maxAttempts = subscriber.getMaxAttempts();
         this.maxFlushDelayMillis = subscriber.getMaxFlushDelayMillis();
+        this.bodyPool = subscriber.getBodyPool();
+        this.subCommand = String.format("SUB %s %s\n", topic, subscription.getChannel()).getBytes(Util.US_ASCII);
 
         scheduleAtFixedRate(new Runnable() {
             public void run() {
@@ -44,58 +73,137 @@ class SubConnection extends Connection {
         }, maxFlushDelayMillis / 2, maxFlushDelayMillis / 2, false);
     }
 
-    public synchronized void finish(String id) {
-        try {
-            writeCommand("FIN", id);
-            finishedCount++;
-            messageDone();
+    //acks don't take the connection lock, they are queued and written by the connection's ack writer.
+    //Each connection has its own, so a slow socket holds up only its own acks and not the client scheduler
+    //that runs heartbeats for every connection. The writer thread exits when idle
+    private static ThreadPoolExecutor newAckWriter() {
+        ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, ACK_WRITER_IDLE_SECS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), ackThreadFactory);
+        writer.allowCoreThreadTimeOut(true);
+        return writer;
+    }
+
+    public void finish(long idHigh, long idLow) {
+        ack(AckQueue.FIN, idHigh, idLow, 0);
+    }
+
+    public void requeue(long idHigh, long idLow) {
+        requeue(idHigh, idLow, 0);
+    }
+
+    public void requeue(long idHigh, long idLow, int delayMillis) {
+        ack(AckQueue.REQ, idHigh, idLow, delayMillis);
+    }
+
+    public void touch(long idHigh, long idLow) {
+        ack(AckQueue.TOUCH, idHigh, idLow, 0);
+    }
+
+    private void ack(byte type, long idHigh, long idLow, int number) {
+        while (!acks.offer(type, idHigh, idLow, number)) {
+            drainAcksAndFlush(); //full, the handler thread writes and waits for the socket instead
         }
-        catch (IOException e) {
-            logger.error("finish error. {}", stateDesc(), e);
-            close();
+        if (acks.size() > maxUnflushed || isStopping) {
+            scheduleDrain();
         }
     }
 
-    public synchronized void requeue(String id) {
-        requeue(id, 0);
+    private void scheduleDrain() {
+        if (isDrainScheduled.compareAndSet(false, true)) {
+            try {
+                ackWriter.execute(new Runnable() {
+                    public void run() {
+                        drainAcksAndFlush();
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                drainAcksAndFlush(); //connection closed
+            }
+        }
     }
 
-    public synchronized void requeue(String id, int delayMillis) {
+    synchronized void drainAcksAndFlush() {
+        isDrainScheduled.set(false);
         try {
-            writeCommand("REQ", id, delayMillis);
-            requeuedCount++;
-            messageDone();
+            if (!drainAcks()) {
+                flush();
+            }
+        }
+        catch (Exception e) {
+            logger.error("ack error. {}", stateDesc(), e);
+            close();
+        }
+    }
+
+    //used by Messages to write a batch in one pass, after any acks already queued
+    synchronized void ackAll(List<NSQMessage> messages, byte type, int delayMillis) {
+        try {
+            if (drainAcks()) {
+                return;
+            }
+            for (NSQMessage msg : messages) {
+                writeAck(type, msg.getIdHigh(), msg.getIdLow(), delayMillis);
+            }
+            if (inFlight.get() == 0 && isStopping) {
+                flushAndClose();
+            }
+            else {
+                flush();
+            }
         }
         catch (IOException e) {
-            logger.error("requeue error. {}", stateDesc(), e);
+            logger.error("ack error. {}", stateDesc(), e);
             close();
         }
     }
 
+    /**
+     * @return true if the connection was closed because it is stopping and no messages are left in flight
+     */
     @GuardedBy("this")
-    private void messageDone() throws IOException {
-        inFlight = Math.max(inFlight - 1, 0);
-        if (inFlight == 0 && isStopping) {
+    private boolean drainAcks() throws IOException {
+        if (acks.drainTo(this) > 0 && inFlight.get() == 0 && isStopping) {
             flushAndClose();
+            return true;
+        }
+        return false;
+    }
+
+    //called by AckQueue.drainTo
+    @GuardedBy("this")
+    void writeAck(byte type, long idHigh, long idLow, int number) throws IOException {
+        if (type == AckQueue.FIN) {
+            writeCommand(FIN, idHigh, idLow);
+            finishedCount++;
+            decrementInFlight();
+        }
+        else if (type == AckQueue.REQ) {
+            writeCommand(REQ, idHigh, idLow, number);
+            requeuedCount++;
+            decrementInFlight();
         }
         else {
-            checkFlush();
+            writeCommand(TOUCH, idHigh, idLow);
         }
+        unflushedCount++;
     }
 
-    public synchronized void touch(String id) {
-        try {
-            writeCommand("TOUCH", id);
-            checkFlush();
-        }
-        catch (IOException e) {
-            logger.error("touch error. {}", stateDesc(), e);
-            close();
+    //acks for messages from before a reconnect aren't counted
+    private void decrementInFlight() {
+        while (true) {
+            int count = inFlight.get();
+            if (count <= 0 || inFlight.compareAndSet(count, count - 1)) {
+                return;
+            }
         }
     }
 
     private synchronized void delayedFlush() {
         try {
+            if (drainAcks()) {
+                return;
+            }
             if (unflushedCount > 0 && Util.clock() - lastActionFlush > (maxFlushDelayMillis / 2) + 10) {
                 flush();
             }
@@ -106,16 +214,6 @@ class SubConnection extends Connection {
         }
     }
 
-    @GuardedBy("this")
-    private void checkFlush() throws IOException {
-        if (unflushedCount >= maxUnflushed) {
-            flush();
-        }
-        else {
-            unflushedCount++;
-        }
-    }
-
     public synchronized void setMaxInFlight(int maxInFlight) {
         setMaxInFlight(maxInFlight, true);
     }
@@ -128,7 +226,7 @@ class SubConnection extends Connection {
             this.maxInFlight = maxInFlight;
             maxUnflushed = Math.min(maxInFlight / 3, 150); //should this be configurable?  FIN id\n is 21 bytes
             logger.debug("RDY:{} {}", maxInFlight, toString());
-            writeCommand("RDY", maxInFlight);
+            writeCommand(RDY, maxInFlight);
             if (isActive) {
                 flush();
             }
@@ -146,16 +244,31 @@ class SubConnection extends Connection {
         return maxInFlight;
     }
 
+    /**
+     * Adds the messages received since the last call to the arrival rate, called by Subscription on a timer.
+     * @return messages per second, averaged over about the last 15 seconds
+     */
+    synchronized double updateArrivalRate(int intervalMillis) {
+        arrivalRate.update((receivedCount - lastReceivedCount) * 1000.0 / intervalMillis);
+        lastReceivedCount = receivedCount;
+        return arrivalRate.get();
+    }
+
+    double getArrivalRate() {
+        return arrivalRate.get();
+    }
+
     @Override
     public synchronized void connect(Config config) throws IOException {
         client.addSubConnection(this);
         super.connect(config);
-        writeCommand("SUB", subscription.getTopic(), subscription.getChannel());
+        out.write(subCommand);
         flushAndReadOK();
     }
 
     private void failMessage(final NSQMessage msg) {
         if (failedMessageHandler != null) {
+            msg.retain(); //a pooled body stays valid until the failed handler is done, after the finish below
             handlerExecutor.execute(new Runnable() {
                 public void run() {
                     try {
@@ -164,38 +277,73 @@ class SubConnection extends Connection {
                     catch (Throwable t) {
                         logger.error("failed message error", t);
                     }
+                    finally {
+                        msg.release();
+                    }
                 }
             });
         }
-        finish(msg.getId());
+        msg.finish();
     }
 
     @Override
-    protected void onMessage(long timestamp, int attempts, String id, byte[] data) {
-        final NSQMessage msg = new NSQMessage(timestamp, attempts, id, data, topic, this);
-        synchronized (this) {
-            inFlight++;
+    protected void onMessage(long timestamp, int attempts, long idHigh, long idLow, DataInputStream in, int bodySize) throws IOException {
+        NSQMessage msg;
+        if (bodyPool == null) {
+            msg = new NSQMessage(timestamp, attempts, idHigh, idLow, readBytes(in, bodySize), topic, this);
         }
+        else {
+            msg = new PooledMessage(timestamp, attempts, idHigh, idLow, readBody(in, bodySize), bodyPool, topic, this);
+        }
+        inFlight.incrementAndGet();
+        receivedCount++;
         if (msg.getAttempts() >= maxAttempts) {
             failMessage(msg);
         }
         else {
-            handlerExecutor.execute(new Runnable() {
-                public void run() {
-                    try {
-                        handler.accept(msg);
-                    }
-                    catch (Throwable t) {
-                        logger.error("message error", t);
-                    }
-                }
-            });
+            handlerExecutor.execute(msg); //the message is its own task, saves an allocation per message
+        }
+    }
+
+    //only called by the reading thread
+    private ByteBuffer readBody(DataInputStream in, int bodySize) throws IOException {
+        ByteBuffer body = bodyPool.acquire(bodySize);
+        if (body.hasArray()) {
+            in.readFully(body.array(), body.arrayOffset(), bodySize);
+            return body;
+        }
+        if (readChunk == null) {
+            readChunk = new byte[8192];
+        }
+        while (body.hasRemaining()) {
+            int len = Math.min(body.remaining(), readChunk.length);
+            in.readFully(readChunk, 0, len);
+            body.put(readChunk, 0, len);
+        }
+        body.flip();
+        return body;
+    }
+
+    //called by NSQMessage.run on a handler thread
+    void handle(NSQMessage msg) {
+        //a MessageBatcher reports per batch, accept is only an enqueue or a whole batch depending on the thread
+        RdyController controller = handler instanceof MessageBatcher ? null : subscription.getRdyController();
+        long start = controller != null ? System.nanoTime() : 0;
+        try {
+            handler.accept(msg);
+        }
+        catch (Throwable t) {
+            logger.error("message error", t);
+        }
+        if (controller != null) {
+            controller.handled(System.nanoTime() - start);
         }
     }
 
     @Override
     public void close() {
         super.close();
+        ackWriter.shutdown(); //acks already queued to it are still written, or fail on the closed connection
         //be paranoid about locks, we only care that this happens sometime soon
         client.getSchedExecutor().execute(new Runnable() {
             public void run() {
@@ -208,7 +356,17 @@ class SubConnection extends Connection {
     @Override
     public synchronized void stop() {
         super.stop();
-        if (inFlight == 0) {
+        try {
+            if (drainAcks()) {
+                return;
+            }
+        }
+        catch (IOException e) {
+            logger.error("ack error. {}", stateDesc(), e);
+            close();
+            return;
+        }
+        if (inFlight.get() == 0) {
             flushAndClose();
         }
         else {
@@ -224,7 +382,7 @@ class SubConnection extends Connection {
     @Override
     public synchronized String stateDesc() {
         return String.format("%s inFlight:%d maxInFlight:%d fin:%d req:%d",
-                super.stateDesc(), inFlight, maxInFlight, finishedCount, requeuedCount);
+                super.stateDesc(), inFlight.get(), maxInFlight, finishedCount, requeuedCount);
     }
 
 }
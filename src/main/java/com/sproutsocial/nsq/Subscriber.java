@@ -5,11 +5,7 @@ import net.jcip.annotations.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -34,6 +30,7 @@ public class Subscriber extends BasePubSub {
     private int maxFlushDelayMillis = 2000;
     private int maxAttempts = Integer.MAX_VALUE;
     private FailedMessageHandler failedMessageHandler = null;
+    private BodyPool bodyPool = null;
     private final Map<String, Integer> failures = new HashMap<String, Integer>();
 
     private static final int DEFAULT_LOOKUP_INTERVAL_SECS = 60;
@@ -92,10 +89,34 @@ public class Subscriber extends BasePubSub {
         if (handler instanceof BackoffHandler) {
             ((BackoffHandler)handler).setSubscription(sub); //awkward
         }
+        else if (handler instanceof MessageBatcher) {
+            ((MessageBatcher)handler).setSubscription(sub);
+        }
         subscriptions.add(sub);
         sub.checkConnections(lookupTopic(topic));
     }
 
+    /**
+     * Subscribe with a handler that receives up to maxBatchSize messages, or whatever arrived within
+     * maxBatchDelayMillis, collected from all connections of the subscription.
+     * maxInFlight is the default or twice the batch size, whichever is larger, so the next batch fills
+     * while the previous one is handled.
+     */
+    public synchronized void subscribe(String topic, String channel, int maxBatchSize, int maxBatchDelayMillis,
+                                       BatchMessageHandler handler) {
+        subscribe(topic, channel, Math.max(defaultMaxInFlight, 2 * maxBatchSize), maxBatchSize, maxBatchDelayMillis, handler);
+    }
+
+    /**
+     * maxInFlight must be at least maxBatchSize, otherwise full batches can't arrive and every batch waits maxBatchDelayMillis.
+     * The BatchMessageHandler must be thread safe if the executor is multi-threaded.
+     */
+    public synchronized void subscribe(String topic, String channel, int maxInFlight, int maxBatchSize, int maxBatchDelayMillis,
+                                       BatchMessageHandler handler) {
+        checkArgument(maxInFlight >= maxBatchSize);
+        subscribe(topic, channel, maxInFlight, new MessageBatcher(client, handler, maxBatchSize, maxBatchDelayMillis));
+    }
+
     public synchronized void setMaxInFlight(String topic, String channel, int maxInFlight) {
         for (Subscription sub : subscriptions) {
             if (sub.getTopic().equals(topic) && sub.getChannel().equals(channel)) {
@@ -104,6 +125,32 @@ public class Subscriber extends BasePubSub {
         }
     }
 
+    /**
+     * Adjust maxInFlight of a subscription every second, between minInFlight and maxInFlight.
+     * It grows while messages are handled within targetLatencyMillis on average and the executor queue
+     * (if it is a ThreadPoolExecutor) holds at most maxQueueSize tasks, and is halved when either is exceeded.
+     * For a BatchMessageHandler the latency is that of a whole batch.
+     */
+    public synchronized void setAdaptiveMaxInFlight(String topic, String channel, int minInFlight, int maxInFlight,
+                                                    int targetLatencyMillis, int maxQueueSize) {
+        for (Subscription sub : subscriptions) {
+            if (sub.getTopic().equals(topic) && sub.getChannel().equals(channel)) {
+                sub.setRdyController(new RdyController(sub, minInFlight, maxInFlight, targetLatencyMillis, maxQueueSize));
+            }
+        }
+    }
+
+    /**
+     * Stop adjusting maxInFlight of a subscription, it keeps its current value.
+     */
+    public synchronized void clearAdaptiveMaxInFlight(String topic, String channel) {
+        for (Subscription sub : subscriptions) {
+            if (sub.getTopic().equals(topic) && sub.getChannel().equals(channel)) {
+                sub.setRdyController(null);
+            }
+        }
+    }
+
     private synchronized void lookup() {
         if (isStopping) {
             return;
@@ -118,22 +165,12 @@ public class Subscriber extends BasePubSub {
         Set<HostAndPort> nsqds = new HashSet<HostAndPort>();
         for (HostAndPort lookup : lookups) {
             String urlString = null;
-            BufferedReader in = null;
             try {
                 urlString = String.format("http://%s/lookup?topic=%s", lookup, URLEncoder.encode(topic, "UTF-8"));
-                URL url = new URL(urlString);
-                HttpURLConnection con = (HttpURLConnection) url.openConnection();
-                con.setConnectTimeout(30000);
-                con.setReadTimeout(30000);
-                if (con.getResponseCode() != 200) {
-                    logger.debug("ignoring lookup resp:{} nsqlookupd:{} topic:{}", con.getResponseCode(), lookup, topic);
+                LookupResponse resp = LookupResponse.get(client.getGson(), urlString);
+                if (resp == null) {
                     continue;
                 }
-                in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-                LookupResponse resp = client.getGson().fromJson(in, LookupResponse.class);
-                if (resp.getData() != null) {
-                    resp = resp.getData(); //nsq before version 1.0 wrapped the response with status_code/data
-                }
                 for (LookupResponse.Producer prod : resp.getProducers()) {
                     nsqds.add(HostAndPort.fromParts(prod.getBroadcastAddress(), prod.getTcpPort()));
                 }
@@ -158,9 +195,6 @@ public class Subscriber extends BasePubSub {
                             lookupFailureCount, lookup, topic, e);
                 }
             }
-            finally {
-                Util.closeQuietly(in);
-            }
         }
         return nsqds;
     }
@@ -209,6 +243,19 @@ public class Subscriber extends BasePubSub {
         this.failedMessageHandler = failedMessageHandler;
     }
 
+    public synchronized BodyPool getBodyPool() {
+        return bodyPool;
+    }
+
+    /**
+     * Read message bodies into buffers from this pool on connections opened after this call,
+     * handlers use Messages.getDataBuffer to avoid copying and the buffer is reused after finish, requeue or release.
+     * null (the default) allocates a byte[] for each message.
+     */
+    public synchronized void setBodyPool(BodyPool bodyPool) {
+        this.bodyPool = bodyPool;
+    }
+
     public synchronized int getLookupIntervalSecs() {
         return lookupIntervalSecs;
     }
@@ -1,5 +1,6 @@
 package com.sproutsocial.nsq;
 
+import net.jcip.annotations.GuardedBy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,6 +18,12 @@ class Subscription extends BasePubSub {
     private final Map<HostAndPort, SubConnection> connectionMap = Collections.synchronizedMap(new HashMap<HostAndPort, SubConnection>());
     private int maxInFlight;
     private ScheduledFuture lowFlightRotateTask;
+    private volatile RdyController rdyController;
+    private ScheduledFuture<?> rdyControllerTask;
+    private ScheduledFuture<?> rebalanceTask;
+
+    static final int REBALANCE_INTERVAL_MILLIS = 5000;
+    static final double EVEN_SHARE = 0.25;
 
     private static final Logger logger = LoggerFactory.getLogger(Subscription.class);
 
@@ -38,6 +45,23 @@ class Subscription extends BasePubSub {
         distributeMaxInFlight();
     }
 
+    public synchronized void setRdyController(final RdyController controller) {
+        Util.cancel(rdyControllerTask);
+        rdyControllerTask = null;
+        rdyController = controller;
+        if (controller != null) {
+            rdyControllerTask = client.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    controller.adjust();
+                }
+            }, RdyController.INTERVAL_MILLIS, RdyController.INTERVAL_MILLIS, false);
+        }
+    }
+
+    public RdyController getRdyController() {
+        return rdyController;
+    }
+
     public synchronized void checkConnections(Set<HostAndPort> activeHosts) {
         synchronized (connectionMap) {
             for (Iterator<SubConnection> iter = connectionMap.values().iterator(); iter.hasNext(); ) {
@@ -68,9 +92,34 @@ class Subscription extends BasePubSub {
                 }
             }
         }
+        if (rebalanceTask == null && !isStopping) {
+            rebalanceTask = client.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    rebalance();
+                }
+            }, REBALANCE_INTERVAL_MILLIS, REBALANCE_INTERVAL_MILLIS, false);
+        }
+        distributeMaxInFlight();
+    }
+
+    //arrival rates are updated here and used by every distribution until the next update
+    private synchronized void rebalance() {
+        if (isStopping) {
+            return;
+        }
+        for (SubConnection con : copy(connectionMap.values())) {
+            con.updateArrivalRate(REBALANCE_INTERVAL_MILLIS);
+        }
         distributeMaxInFlight();
     }
 
+    /**
+     * Inactive connections get 1, each active connection gets 1 and the rest is split between them,
+     * a quarter evenly and the rest by recent message arrival rate, so busy nsqds get the most.
+     * A connection with few messages keeps enough to show when its rate goes up.
+     * Without any messages yet everything is split evenly.
+     */
+    @GuardedBy("this")
     private void distributeMaxInFlight() {
         if (checkLowFlight() || connectionMap.isEmpty()) {
             return;
@@ -94,6 +143,45 @@ class Subscription extends BasePubSub {
             con.setMaxInFlight(1, false);
         }
         int f = maxInFlight - inactiveCons.size();
+        double[] rates = new double[activeCons.size()];
+        double totalRate = 0;
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = activeCons.get(i).getArrivalRate();
+            totalRate += rates[i];
+        }
+        if (totalRate <= 0) {
+            distributeEvenly(activeCons, f);
+            return;
+        }
+        //everyone starts with 1, the rest by weight, then what rounding left over to the largest remainders
+        int n = activeCons.size();
+        int spare = f - n;
+        int[] counts = new int[n];
+        double[] remainders = new double[n];
+        int left = spare;
+        for (int i = 0; i < n; i++) {
+            double share = spare * (EVEN_SHARE / n + (1 - EVEN_SHARE) * rates[i] / totalRate);
+            counts[i] = 1 + (int) share;
+            remainders[i] = share - (int) share;
+            left -= (int) share;
+        }
+        for (; left > 0; left--) {
+            int max = 0;
+            for (int i = 1; i < n; i++) {
+                if (remainders[i] > remainders[max]) {
+                    max = i;
+                }
+            }
+            counts[max]++;
+            remainders[max] = -1;
+        }
+        for (int i = 0; i < n; i++) {
+            SubConnection con = activeCons.get(i);
+            con.setMaxInFlight(Math.min(counts[i], con.getMaxRdyCount()));
+        }
+    }
+
+    private static void distributeEvenly(List<SubConnection> activeCons, int f) {
         int perCon = f / activeCons.size();
         int extra = f % activeCons.size();
         for (SubConnection con : activeCons) {
@@ -152,6 +240,10 @@ class Subscription extends BasePubSub {
         synchronized (this) {
             Util.cancel(lowFlightRotateTask);
             lowFlightRotateTask = null;
+            Util.cancel(rdyControllerTask);
+            rdyControllerTask = null;
+            Util.cancel(rebalanceTask);
+            rebalanceTask = null;
         }
         for (SubConnection con : copy(connectionMap.values())) {
             con.stop();
@@ -0,0 +1,69 @@
+package com.sproutsocial.nsq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures publishBuffered throughput with 1 to 64 threads publishing to one topic.
+ * Batches are counted instead of sent, so this measures contention in Publisher and Batcher only.
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=com.sproutsocial.nsq.BatcherBenchmark -Dexec.classpathScope=test
+ */
+public class BatcherBenchmark {
+
+    private static final int MESSAGES_PER_RUN = 4000000;
+
+    public static void main(String[] args) throws Exception {
+        byte[] msg = new byte[100];
+        for (int threads : new int[] {1, 2, 4, 8, 16, 32, 64}) {
+            run(threads, msg); //warm up
+            long nanos = run(threads, msg);
+            System.out.println(String.format("threads:%2d msgs/sec:%,12.0f", threads, MESSAGES_PER_RUN * 1e9 / nanos));
+        }
+        System.exit(0);
+    }
+
+    private static long run(int numThreads, final byte[] msg) throws Exception {
+        Client client = new Client();
+        final AtomicLong received = new AtomicLong();
+        final Publisher publisher = new Publisher(client, "localhost", null) {
+            @Override
+            public void publish(String topic, List<byte[]> dataList) {
+                received.addAndGet(dataList.size());
+            }
+        };
+        final int perThread = MESSAGES_PER_RUN / numThreads;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numThreads; t++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        publisher.publishBuffered("bench", msg);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        while (received.get() < (long) perThread * numThreads) {
+            Thread.sleep(1);
+        }
+        long nanos = System.nanoTime() - begin;
+        client.stop();
+        return nanos;
+    }
+
+}
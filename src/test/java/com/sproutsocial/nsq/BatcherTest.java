@@ -0,0 +1,189 @@
+package com.sproutsocial.nsq;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BatcherTest {
+
+    private Client client;
+    private RecordingPublisher publisher;
+
+    @Before
+    public void setUp() {
+        client = new Client();
+        publisher = new RecordingPublisher(client);
+    }
+
+    @After
+    public void tearDown() {
+        client.stop();
+    }
+
+    @Test
+    public void testSendsFullBatches() throws Exception {
+        Batcher batcher = new Batcher(publisher, "topic", 1000, 60000);
+        for (int i = 0; i < 25; i++) {
+            batcher.publish(new byte[100]);
+        }
+        publisher.awaitMessages(20);
+        for (List<byte[]> batch : publisher.getBatches()) {
+            assertEquals(10, batch.size());
+        }
+        batcher.sendBatch();
+        assertEquals(25, publisher.getMessageCount());
+    }
+
+    @Test
+    public void testFullBatchFailureReachesPublisher() throws Exception {
+        Publisher failingPublisher = new RecordingPublisher(client) {
+            @Override
+            public void publish(String topic, List<byte[]> dataList) {
+                throw new NSQException("nsqd unavailable");
+            }
+        };
+        Batcher batcher = new Batcher(failingPublisher, "topic", 1000, 60000);
+        for (int i = 0; i < 9; i++) {
+            batcher.publish(new byte[100]);
+        }
+        try {
+            batcher.publish(new byte[100]);
+            fail("the call that fills the batch sends it");
+        }
+        catch (NSQException e) {
+            assertEquals("nsqd unavailable", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testSendsAfterDelay() throws Exception {
+        Batcher batcher = new Batcher(publisher, "topic", 16 * 1024, 50);
+        long start = Util.clock();
+        batcher.publish(new byte[10]);
+        batcher.publish(new byte[10]);
+        publisher.awaitMessages(2);
+        assertTrue(Util.clock() - start >= 45);
+        assertEquals(1, publisher.getBatches().size());
+
+        batcher.publish(new byte[10]);
+        publisher.awaitMessages(3);
+        assertEquals(2, publisher.getBatches().size());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final Batcher batcher = new Batcher(publisher, "topic", 2000, 20);
+        final int perThread = 5000;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        batcher.publish(new byte[1 + i % 50]);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        publisher.awaitMessages(8 * perThread);
+        assertEquals(8 * perThread, publisher.getMessageCount());
+    }
+
+    @Test
+    public void testAdaptsToRate() throws Exception {
+        Batcher batcher = new Batcher(publisher, "topic", 512 * 1024, 200, 200);
+        batcher.publish(new byte[10]);
+        publisher.awaitMessages(1);
+        Thread.sleep(50);
+        assertEquals(Batcher.MIN_ADAPTIVE_DELAY_MILLIS, batcher.getMaxDelayMillis()); //quiet topic sends sooner
+
+        int count = 1;
+        long end = Util.clock() + 500;
+        while (Util.clock() < end && count < 200000) {
+            batcher.publish(new byte[100]);
+            count++;
+        }
+        publisher.awaitMessages(count);
+        assertTrue(batcher.getMaxSize() > 16 * 1024);
+        assertTrue(batcher.getMaxDelayMillis() > Batcher.MIN_ADAPTIVE_DELAY_MILLIS);
+    }
+
+    @Test
+    public void testBufferLimitRejects() throws Exception {
+        publisher.setBufferLimit(1000, OverflowPolicy.REJECT);
+        Batcher batcher = new Batcher(publisher, "topic", 16 * 1024, 60000);
+        for (int i = 0; i < 10; i++) {
+            batcher.publish(new byte[100]);
+        }
+        try {
+            batcher.publish(new byte[100]);
+            fail("buffer should be full");
+        }
+        catch (NSQException e) {
+            assertTrue(e.getMessage().startsWith("publish buffer full"));
+        }
+        assertEquals(1000, publisher.getBufferedBytes());
+        batcher.sendBatch();
+        assertEquals(0, publisher.getBufferedBytes());
+        batcher.publish(new byte[100]);
+    }
+
+    @Test
+    public void testBufferLimitDropsOldest() throws Exception {
+        publisher.setBufferLimit(1000, OverflowPolicy.DROP_OLDEST);
+        Batcher batcher = new Batcher(publisher, "topic", 16 * 1024, 60000);
+        for (int i = 0; i < 15; i++) {
+            byte[] msg = new byte[100];
+            msg[0] = (byte) i;
+            batcher.publish(msg);
+        }
+        assertEquals(1000, batcher.getBufferedBytes());
+        assertEquals(5, publisher.getDroppedCount());
+        batcher.sendBatch();
+        List<byte[]> sent = publisher.getBatches().get(0);
+        assertEquals(10, sent.size());
+        assertEquals(5, sent.get(0)[0]);
+    }
+
+    static class RecordingPublisher extends Publisher {
+        private final List<List<byte[]>> batches = Collections.synchronizedList(new ArrayList<List<byte[]>>());
+        private int messageCount;
+
+        RecordingPublisher(Client client) {
+            super(client, "localhost", null);
+        }
+
+        @Override
+        public synchronized void publish(String topic, List<byte[]> dataList) {
+            batches.add(dataList);
+            messageCount += dataList.size();
+            notifyAll();
+        }
+
+        synchronized void awaitMessages(int count) throws InterruptedException {
+            long end = Util.clock() + 5000;
+            while (messageCount < count && Util.clock() < end) {
+                wait(100);
+            }
+        }
+
+        synchronized int getMessageCount() {
+            return messageCount;
+        }
+
+        List<List<byte[]>> getBatches() {
+            return Util.copy(batches);
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.sproutsocial.nsq;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BodyPoolTest {
+
+    @Test
+    public void testReusesSizeClasses() {
+        BodyPool pool = new BodyPool();
+        ByteBuffer small = pool.acquire(100);
+        assertEquals(100, small.remaining());
+        assertEquals(256, small.capacity());
+        pool.release(small);
+        assertSame(small, pool.acquire(200));
+        assertEquals(1024, pool.acquire(1000).capacity());
+        assertEquals(2 * 1024 * 1024, pool.acquire(2 * 1024 * 1024).capacity()); //too big to pool
+        assertEquals(0.25, pool.getReuseRate(), 0.001);
+        assertTrue(new BodyPool(1024 * 1024, true).acquire(10).isDirect());
+    }
+
+    @Test
+    public void testRefCount() {
+        BodyPool pool = new BodyPool();
+        ByteBuffer body = pool.acquire(4);
+        body.put("data".getBytes()).flip();
+        Message msg = new PooledMessage(0, 1, 0, 0, body, pool, "topic", null);
+        Messages.retain(msg);
+        Messages.release(msg);
+        assertEquals("data", new String(msg.getData()));
+        Messages.release(msg);
+        try {
+            Messages.getDataBuffer(msg);
+            fail("released body should not be readable");
+        }
+        catch (IllegalStateException e) {
+            //expected
+        }
+        Messages.release(msg); //extra releases are ignored
+        assertSame(body, pool.acquire(4));
+    }
+
+    @Test
+    public void testDataBufferViewsAreIndependent() {
+        Message msg = newMessage(new BodyPool(), "data");
+        ByteBuffer first = Messages.getDataBuffer(msg);
+        first.get(new byte[3]);
+        ByteBuffer second = Messages.getDataBuffer(msg);
+        assertEquals(4, second.remaining());
+        assertEquals("data", new String(msg.getData()));
+        assertEquals(1, first.remaining());
+    }
+
+    @Test
+    public void testDetectsLeaks() throws Exception {
+        BodyPool pool = new BodyPool();
+        pool.setLeakSampleInterval(1);
+        newMessage(pool, "released").release();
+        newMessage(pool, "leaked");
+        for (int i = 0; i < 50 && pool.getLeakCount() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, pool.getLeakCount());
+    }
+
+    private static PooledMessage newMessage(BodyPool pool, String data) {
+        ByteBuffer body = pool.acquire(data.length());
+        body.put(data.getBytes()).flip();
+        return new PooledMessage(0, 1, 0, 0, body, pool, "topic", null);
+    }
+
+}
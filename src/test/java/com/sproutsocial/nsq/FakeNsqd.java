@@ -0,0 +1,167 @@
+package com.sproutsocial.nsq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A minimal nsqd for publisher tests. Answers IDENTIFY, then every PUB, DPUB and MPUB with the next
+ * scripted response, OK when none are left. Responses starting with E_ are sent as error frames and
+ * E_BAD errors close the connection, like nsqd does for fatal errors. CLOSE drops the connection without answering.
+ */
+class FakeNsqd {
+
+    private final ServerSocket server;
+    private final Queue<String> responses = new ConcurrentLinkedQueue<String>();
+    private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+    FakeNsqd() throws IOException {
+        server = new ServerSocket(0);
+        Thread acceptThread = new Thread() {
+            public void run() {
+                acceptLoop();
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    String getHost() {
+        return "localhost:" + server.getLocalPort();
+    }
+
+    void addResponse(String response) {
+        responses.add(response);
+    }
+
+    /**
+     * @return message bodies nsqd answered OK, in order
+     */
+    List<String> getMessages() {
+        synchronized (messages) {
+            return new ArrayList<String>(messages);
+        }
+    }
+
+    void close() throws IOException {
+        server.close();
+        synchronized (sockets) {
+            for (Socket sock : sockets) {
+                sock.close();
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        try {
+            while (true) {
+                final Socket sock = server.accept();
+                sockets.add(sock);
+                Thread connThread = new Thread() {
+                    public void run() {
+                        serve(sock);
+                    }
+                };
+                connThread.setDaemon(true);
+                connThread.start();
+            }
+        }
+        catch (IOException e) {
+            //closed
+        }
+    }
+
+    private void serve(Socket sock) {
+        try {
+            DataInputStream in = new DataInputStream(sock.getInputStream());
+            OutputStream out = sock.getOutputStream();
+            in.readFully(new byte[4]); //magic
+            readLine(in);
+            in.readFully(new byte[in.readInt()]);
+            out.write(frame(0, "{\"version\":\"1.2.0\",\"max_rdy_count\":2500,\"msg_timeout\":60000,\"heartbeat_interval\":30000,"
+                    + "\"tls_v1\":false,\"deflate\":false,\"snappy\":false,\"auth_required\":false}"));
+            out.flush();
+            for (String line = readLine(in); line != null; line = readLine(in)) {
+                List<String> bodies = new ArrayList<String>();
+                if (line.startsWith("PUB ") || line.startsWith("DPUB ")) {
+                    bodies.add(new String(readBytes(in, in.readInt())));
+                }
+                else if (line.startsWith("MPUB ")) {
+                    in.readInt(); //body size
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        bodies.add(new String(readBytes(in, in.readInt())));
+                    }
+                }
+                else {
+                    continue; //NOP
+                }
+                String response = responses.poll();
+                if ("CLOSE".equals(response)) {
+                    break;
+                }
+                if (response == null || "OK".equals(response)) {
+                    messages.addAll(bodies);
+                    out.write(frame(0, "OK"));
+                }
+                else {
+                    out.write(frame(response.startsWith("E_") ? 1 : 0, response));
+                }
+                out.flush();
+                if (response != null && response.startsWith("E_BAD")) {
+                    break;
+                }
+            }
+        }
+        catch (IOException e) {
+            //client closed
+        }
+        finally {
+            try {
+                sock.close();
+            }
+            catch (IOException e) {
+                //ignore
+            }
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in, int size) throws IOException {
+        byte[] data = new byte[size];
+        in.readFully(data);
+        return data;
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    private static byte[] frame(int frameType, String response) throws IOException {
+        byte[] data = response.getBytes(Util.US_ASCII);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(data.length + 4);
+        out.writeInt(frameType);
+        out.write(data);
+        return bytes.toByteArray();
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.sproutsocial.nsq;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.powermock.reflect.Whitebox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MessageBatcherTest {
+
+    private Client client;
+    private final LinkedBlockingQueue<List<Message>> batches = new LinkedBlockingQueue<List<Message>>();
+    private final BatchMessageHandler recorder = new BatchMessageHandler() {
+        public void accept(List<Message> messages) {
+            batches.add(messages);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        client = new Client();
+    }
+
+    @After
+    public void tearDown() {
+        client.stop();
+    }
+
+    @Test
+    public void testFullBatchesThenDelayed() throws Exception {
+        MessageBatcher batcher = new MessageBatcher(client, recorder, 3, 100);
+        List<Message> sent = new ArrayList<Message>();
+        for (int i = 0; i < 7; i++) {
+            Message msg = Mockito.mock(Message.class);
+            sent.add(msg);
+            batcher.accept(msg);
+        }
+        assertEquals(sent.subList(0, 3), batches.poll()); //full batches run on the accepting thread
+        assertEquals(sent.subList(3, 6), batches.poll());
+        assertNull(batches.poll());
+        assertEquals(sent.subList(6, 7), batches.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testHandlerErrorDoesNotStopBatching() throws Exception {
+        MessageBatcher batcher = new MessageBatcher(client, new BatchMessageHandler() {
+            public void accept(List<Message> messages) {
+                recorder.accept(messages);
+                throw new RuntimeException("test error");
+            }
+        }, 1, 100);
+        Message msg = Mockito.mock(Message.class);
+        batcher.accept(msg);
+        batcher.accept(msg);
+        assertEquals(Collections.singletonList(msg), batches.poll());
+        assertEquals(Collections.singletonList(msg), batches.poll());
+    }
+
+    @Test
+    public void testLatencyReportedPerBatch() {
+        MessageBatcher batcher = new MessageBatcher(client, recorder, 3, 100);
+        Subscription sub = new Subscription(client, "topic", "channel", batcher, new Subscriber(client, 30, 5), 20);
+        batcher.setSubscription(sub);
+        RdyController controller = new RdyController(sub, 10, 100, 50, 100);
+        sub.setRdyController(controller);
+        for (int i = 0; i < 6; i++) {
+            batcher.accept(Mockito.mock(Message.class));
+        }
+        AtomicInteger handledCount = Whitebox.getInternalState(controller, "handledCount");
+        assertEquals(2, handledCount.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxInFlightFitsBatch() {
+        new Subscriber(client, 30, 5).subscribe("topic", "channel", 10, 20, 100, recorder);
+    }
+
+}
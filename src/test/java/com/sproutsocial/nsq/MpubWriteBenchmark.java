@@ -0,0 +1,113 @@
+package com.sproutsocial.nsq;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compares writing MPUB frames with PubConnection against the previous DataOutputStream encoding.
+ * The socket is replaced by a stream that counts write calls and the bytes that were copied into the
+ * stream buffer instead of passed straight through from the message arrays.
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=com.sproutsocial.nsq.MpubWriteBenchmark -Dexec.classpathScope=test
+ */
+public class MpubWriteBenchmark {
+
+    private static final long BYTES_PER_RUN = 2L * 1024 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        for (int[] shape : new int[][] {{100, 1000}, {4 * 1024, 100}, {64 * 1024, 16}}) {
+            List<byte[]> batch = new ArrayList<byte[]>();
+            for (int i = 0; i < shape[1]; i++) {
+                batch.add(new byte[shape[0]]);
+            }
+            runStream(batch); //warm up
+            report("stream", shape, runStream(batch));
+            runConnection(batch);
+            report("pubcon", shape, runConnection(batch));
+        }
+        System.exit(0);
+    }
+
+    private static void report(String name, int[] shape, Sink sink) {
+        System.out.println(String.format("%s msgSize:%6d batch:%5d MB/sec:%,8.0f socket writes/batch:%6.1f copied bytes/batch:%,10d",
+                name, shape[0], shape[1], sink.bytes / 1e6 / (sink.nanos / 1e9),
+                (double) sink.writes / sink.batches, sink.copied / sink.batches));
+    }
+
+    //the encoding used before, for comparison
+    private static Sink runStream(List<byte[]> batch) throws IOException {
+        Sink sink = new Sink(batch);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sink));
+        long begin = System.nanoTime();
+        while (sink.bytes < BYTES_PER_RUN) {
+            out.write(("MPUB " + "bench" + "\n").getBytes(Util.US_ASCII));
+            int bodySize = 4;
+            for (byte[] data : batch) {
+                bodySize += data.length + 4;
+            }
+            out.writeInt(bodySize);
+            out.writeInt(batch.size());
+            for (byte[] data : batch) {
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            out.flush();
+            sink.batches++;
+        }
+        sink.nanos = System.nanoTime() - begin;
+        return sink;
+    }
+
+    private static Sink runConnection(List<byte[]> batch) throws IOException {
+        Client client = new Client();
+        Publisher publisher = new Publisher(client, "localhost", null);
+        Sink sink = new Sink(batch);
+        PubConnection con = new PubConnection(client, HostAndPort.fromParts("localhost", 4150), publisher);
+        con.out = new DataOutputStream(new BufferedOutputStream(sink, PubConnection.WRITE_BUFFER_SIZE));
+        long begin = System.nanoTime();
+        while (sink.bytes < BYTES_PER_RUN) {
+            con.mpub("bench", batch);
+            con.onResponse("OK");
+            sink.batches++;
+        }
+        sink.nanos = System.nanoTime() - begin;
+        client.stop();
+        return sink;
+    }
+
+    private static class Sink extends OutputStream {
+        private final Set<byte[]> messages = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+        private long bytes;
+        private long copied;
+        private long writes;
+        private long batches;
+        private long nanos;
+
+        Sink(List<byte[]> batch) {
+            messages.addAll(batch);
+        }
+
+        @Override
+        public void write(int b) {
+            bytes++;
+            copied++;
+            writes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+            if (!messages.contains(b)) {
+                copied += len;
+            }
+            writes++;
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+package com.sproutsocial.nsq;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NioReaderTest {
+
+    private ServerSocket server;
+    private Client client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        client = new Client();
+        client.setNioReadThreads(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.stop();
+        server.close();
+    }
+
+    @Test
+    public void testPublishResponsesReadBySelector() throws Exception {
+        Thread nsqd = new Thread() {
+            public void run() {
+                try {
+                    fakeNsqd(server.accept(), new ArrayList<byte[]>());
+                }
+                catch (IOException e) {
+                    //test fails on publish
+                }
+            }
+        };
+        nsqd.start();
+        Publisher publisher = new Publisher(client, "localhost:" + server.getLocalPort(), null);
+        for (int i = 0; i < 4; i++) {
+            publisher.publish("topic", ("msg" + i).getBytes());
+        }
+        assertTrue(isThreadRunning("nsq-nio"));
+        assertFalse(isThreadRunning("nsq-read"));
+        publisher.stop();
+        nsqd.join(5000);
+        for (int i = 0; i < 50 && isThreadRunning("nsq-nio"); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse("selector thread exits with its last connection", isThreadRunning("nsq-nio"));
+    }
+
+    @Test
+    public void testSendsFileWithTransferTo() throws Exception {
+        final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<byte[]>());
+        Thread nsqd = new Thread() {
+            public void run() {
+                try {
+                    fakeNsqd(server.accept(), bodies);
+                }
+                catch (IOException e) {
+                    //test fails on publish
+                }
+            }
+        };
+        nsqd.start();
+        byte[] data = new byte[300 * 1024]; //larger than the socket buffer
+        new Random(7).nextBytes(data);
+        File file = File.createTempFile("nsq-transfer", ".dat");
+        file.deleteOnExit();
+        FileOutputStream fileOut = new FileOutputStream(file);
+        fileOut.write(data);
+        fileOut.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            Publisher publisher = new Publisher(client, "localhost:" + server.getLocalPort(), null);
+            publisher.publish("topic", raf.getChannel(), 100, data.length - 100);
+            assertEquals(0, raf.getChannel().position());
+            publisher.publish("topic", "after".getBytes()); //the frame ended where it should
+            publisher.stop();
+        }
+        finally {
+            raf.close();
+        }
+        nsqd.join(5000);
+        assertEquals(2, bodies.size());
+        assertArrayEquals(Arrays.copyOfRange(data, 100, data.length), bodies.get(0));
+        assertEquals("after", new String(bodies.get(1)));
+    }
+
+    @Test
+    public void testReadsFramesLargerThanBuffer() throws Exception {
+        final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<byte[]>());
+        Thread nsqd = new Thread() {
+            public void run() {
+                try {
+                    fakeNsqd(server.accept(), bodies);
+                }
+                catch (IOException e) {
+                    //test fails on publish
+                }
+            }
+        };
+        nsqd.start();
+        Publisher publisher = new Publisher(client, "localhost:" + server.getLocalPort(), null);
+        long start = System.currentTimeMillis();
+        publisher.publish("topic", "large".getBytes()); //answered with a 100KB non fatal error before OK
+        publisher.publish("topic", "after".getBytes());
+        assertTrue("large frame read without waiting for a timeout", System.currentTimeMillis() - start < 2000);
+        publisher.stop();
+        nsqd.join(5000);
+        assertEquals(2, bodies.size());
+    }
+
+    //answers IDENTIFY then every PUB, splitting the first response and sending a heartbeat with the second,
+    //a "large" body is answered with a 100KB non fatal error frame before OK
+    private static void fakeNsqd(Socket sock, List<byte[]> bodies) throws IOException {
+        try {
+            DataInputStream in = new DataInputStream(sock.getInputStream());
+            OutputStream out = sock.getOutputStream();
+            in.readFully(new byte[4]); //magic
+            readLine(in);
+            in.readFully(new byte[in.readInt()]);
+            out.write(frame("{\"version\":\"1.2.0\",\"max_rdy_count\":2500,\"msg_timeout\":60000,\"heartbeat_interval\":30000,"
+                    + "\"tls_v1\":false,\"deflate\":false,\"snappy\":false,\"auth_required\":false}"));
+            int count = 0;
+            for (String line = readLine(in); line != null; line = readLine(in)) {
+                if (!line.startsWith("PUB ")) {
+                    continue; //NOP after the heartbeat
+                }
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                bodies.add(body);
+                if ("large".equals(new String(body))) {
+                    char[] pad = new char[100 * 1024];
+                    Arrays.fill(pad, 'x');
+                    out.write(frame(1, "E_FIN_FAILED " + new String(pad)));
+                }
+                byte[] ok = frame("OK");
+                if (count == 0) {
+                    out.write(ok, 0, 3);
+                    out.flush();
+                    sleep(50);
+                    out.write(ok, 3, ok.length - 3);
+                }
+                else if (count == 1) {
+                    ByteArrayOutputStream both = new ByteArrayOutputStream();
+                    both.write(frame("_heartbeat_"));
+                    both.write(ok);
+                    out.write(both.toByteArray());
+                }
+                else {
+                    out.write(ok);
+                }
+                out.flush();
+                count++;
+            }
+        }
+        finally {
+            sock.close();
+        }
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    private static byte[] frame(String response) throws IOException {
+        return frame(0, response);
+    }
+
+    private static byte[] frame(int frameType, String response) throws IOException {
+        byte[] data = response.getBytes(Util.US_ASCII);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(data.length + 4);
+        out.writeInt(frameType);
+        out.write(data);
+        return bytes.toByteArray();
+    }
+
+    private static boolean isThreadRunning(String prefix) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(prefix) && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.sproutsocial.nsq;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PooledPublisherTest {
+
+    private Client client;
+    private PooledPublisher publisher;
+    private List<PubConnection> cons;
+
+    @Before
+    public void setUp() {
+        client = new Client();
+        publisher = new PooledPublisher(client, 60);
+        publisher.setMaxInFlight(10);
+        cons = new ArrayList<PubConnection>();
+        for (int i = 0; i < 3; i++) {
+            PubConnection con = new PubConnection(client, HostAndPort.fromParts("host" + i, 4150), publisher);
+            con.out = new DataOutputStream(new ByteArrayOutputStream());
+            cons.add(con);
+        }
+        Whitebox.setInternalState(publisher, "connections", cons);
+    }
+
+    @After
+    public void tearDown() {
+        client.stop();
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        Set<PubConnection> used = new HashSet<PubConnection>();
+        for (int i = 0; i < 3; i++) {
+            used.add(publisher.getConnection());
+        }
+        assertEquals(3, used.size());
+    }
+
+    @Test
+    public void testLeastOutstanding() throws Exception {
+        publisher.setRouting(PublishRouting.LEAST_OUTSTANDING);
+        cons.get(0).pub("topic", "a".getBytes());
+        cons.get(0).pub("topic", "b".getBytes());
+        cons.get(2).pub("topic", "c".getBytes());
+        for (int i = 0; i < 5; i++) {
+            assertSame(cons.get(1), publisher.getConnection());
+        }
+        cons.get(1).pub("topic", "d".getBytes());
+        cons.get(1).pub("topic", "e".getBytes());
+        assertSame(cons.get(2), publisher.getConnection());
+    }
+
+    @Test
+    public void testLatencyAvoidsSlowConnection() throws Exception {
+        publisher.setRouting(PublishRouting.LATENCY);
+        cons.get(0).pub("topic", "a".getBytes());
+        Thread.sleep(50);
+        cons.get(0).onResponse("OK");
+        for (int i = 1; i < 3; i++) {
+            cons.get(i).pub("topic", "b".getBytes());
+            cons.get(i).onResponse("OK");
+        }
+        assertTrue(cons.get(0).getLatencyNanos() > cons.get(1).getLatencyNanos());
+        for (int i = 0; i < 50; i++) {
+            assertNotSame(cons.get(0), publisher.getConnection());
+        }
+    }
+
+    @Test
+    public void testLatencyAvoidsStalledConnection() throws Exception {
+        publisher.setRouting(PublishRouting.LATENCY);
+        for (int i = 0; i < 3; i++) {
+            cons.get(i).pub("topic", "a".getBytes());
+        }
+        Thread.sleep(50);
+        for (int i = 1; i < 3; i++) {
+            cons.get(i).onResponse("OK");
+        }
+        //no responses from 0, its average is 0 but its oldest publish has waited longest
+        assertEquals(0, cons.get(0).getLatencyNanos(), 0);
+        for (int i = 0; i < 50; i++) {
+            assertNotSame(cons.get(0), publisher.getConnection());
+        }
+    }
+
+    @Test
+    public void testClosedConnectionRemoved() throws Exception {
+        publisher.connectionClosed(cons.get(1));
+        assertEquals(2, publisher.getConnectionCount());
+        for (int i = 0; i < 6; i++) {
+            assertNotSame(cons.get(1), publisher.getConnection());
+        }
+    }
+
+}
@@ -0,0 +1,306 @@
+package com.sproutsocial.nsq;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PubConnectionTest {
+
+    private Client client;
+    private Publisher publisher;
+
+    @Before
+    public void setUp() {
+        client = new Client();
+        publisher = new Publisher(client, "localhost", null);
+        publisher.setMaxInFlight(3);
+    }
+
+    @After
+    public void tearDown() {
+        client.stop();
+    }
+
+    private PubConnection newConnection() {
+        PubConnection con = new PubConnection(client, HostAndPort.fromParts("localhost", 4150), publisher);
+        con.out = new DataOutputStream(new ByteArrayOutputStream());
+        return con;
+    }
+
+    @Test
+    public void testResponsesMatchedInOrder() throws Exception {
+        PubConnection con = newConnection();
+        PublishFuture pub = con.pub("topic", "a".getBytes());
+        PublishFuture mpub = con.mpub("topic", Arrays.asList("b".getBytes(), "c".getBytes()));
+        PublishFuture dpub = con.dpub("topic", "d".getBytes(), 1000);
+        assertEquals(3, con.getPendingCount());
+
+        con.onResponse("OK");
+        assertTrue(pub.isDone());
+        assertFalse(mpub.isDone());
+        pub.get();
+
+        con.onResponse("E_BAD_BODY");
+        assertTrue(mpub.isDone());
+        try {
+            mpub.get();
+            fail("error response expected");
+        }
+        catch (ExecutionException expected) {
+        }
+
+        con.onResponse("OK");
+        dpub.get(1, TimeUnit.SECONDS);
+        assertEquals(0, con.getPendingCount());
+    }
+
+    @Test
+    public void testCloseFailsPending() throws Exception {
+        PubConnection con = newConnection();
+        PublishFuture first = con.pub("topic", "a".getBytes());
+        PublishFuture second = con.pub("topic", "b".getBytes());
+        con.close();
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+        assertEquals(0, con.getPendingCount());
+        try {
+            second.get();
+            fail("connection closed error expected");
+        }
+        catch (ExecutionException expected) {
+        }
+    }
+
+    @Test
+    public void testListenerRunsOnResponse() throws Exception {
+        PubConnection con = newConnection();
+        PublishFuture future = con.pub("topic", "a".getBytes());
+        final AtomicInteger count = new AtomicInteger();
+        future.addListener(new Runnable() {
+            public void run() {
+                count.incrementAndGet();
+            }
+        }, Util.DIRECT_EXECUTOR);
+        assertEquals(0, count.get());
+        assertEquals(-1, future.getLatency(TimeUnit.NANOSECONDS));
+
+        con.onResponse("OK");
+        assertEquals(1, count.get());
+        assertNull(future.getError());
+        assertTrue(future.getLatency(TimeUnit.NANOSECONDS) >= 0);
+
+        future.addListener(new Runnable() {
+            public void run() {
+                count.incrementAndGet();
+            }
+        }, Util.DIRECT_EXECUTOR);
+        assertEquals(2, count.get());
+    }
+
+    @Test
+    public void testSplitsLargeMpub() throws Exception {
+        publisher.setMaxBodySize(100);
+        final PubConnection con = newConnection();
+        final List<byte[]> messages = new ArrayList<byte[]>();
+        for (int i = 0; i < 5; i++) {
+            messages.add(new byte[40]);
+        }
+        Thread publishThread = new Thread() {
+            public void run() {
+                try {
+                    con.publish("topic", messages);
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        publishThread.start();
+        long end = Util.clock() + 5000;
+        while (con.getPendingCount() < 3 && Util.clock() < end) {
+            Thread.sleep(1);
+        }
+        assertEquals(3, con.getPendingCount()); //two messages fit in each MPUB
+        for (int i = 0; i < 3; i++) {
+            con.onResponse("OK");
+        }
+        publishThread.join(5000);
+        assertFalse(publishThread.isAlive());
+    }
+
+    @Test
+    public void testSplitsBatchBeforeSending() throws Exception {
+        publisher.setMaxBodySize(100);
+        PubConnection con = newConnection();
+        List<PublishFuture> futures = con.mpubSplit("topic", Arrays.asList(new byte[60], new byte[60], new byte[10]));
+        assertEquals(2, futures.size());
+        PublishFuture all = PublishFuture.all(futures);
+        con.onResponse("OK");
+        assertFalse(all.isDone());
+        con.onResponse("OK");
+        assertTrue(all.isDone());
+        assertNull(all.getError());
+
+        all = PublishFuture.all(con.mpubSplit("topic", Arrays.asList(new byte[60], new byte[60])));
+        con.onResponse("E_BAD_BODY");
+        assertNotNull(all.getError());
+    }
+
+    @Test
+    public void testReportsMessagesOfFailedSplit() throws Exception {
+        publisher.setMaxBodySize(100);
+        final PubConnection con = newConnection();
+        final List<byte[]> dataList = Arrays.asList(new byte[60], new byte[60], new byte[10]);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        Thread publishThread = new Thread() {
+            public void run() {
+                try {
+                    con.publish("topic", dataList);
+                }
+                catch (Exception e) {
+                    error.set(e);
+                }
+            }
+        };
+        publishThread.start();
+        long end = Util.clock() + 5000;
+        while (con.getPendingCount() < 2 && Util.clock() < end) {
+            Thread.sleep(1);
+        }
+        con.onResponse("OK");
+        con.onResponse("E_MPUB_FAILED");
+        publishThread.join(5000);
+        assertTrue(String.valueOf(error.get()), error.get() instanceof PartialPublishException);
+        assertEquals(dataList.subList(1, 3), ((PartialPublishException) error.get()).getUnpublished());
+    }
+
+    @Test
+    public void testLearnsLimits() throws Exception {
+        PubConnection con = newConnection();
+        con.pub("topic", "a".getBytes());
+        con.pub("topic", "b".getBytes());
+        con.onResponse("com.sproutsocial.nsq.NSQException: error from nsqd:E_BAD_BODY MPUB body too big 6000 > 5000");
+        con.onResponse("com.sproutsocial.nsq.NSQException: error from nsqd:E_BAD_MESSAGE PUB message too big 2000 > 1000");
+        assertEquals(5000, publisher.getMaxBodySize());
+        try {
+            publisher.publish("topic", new byte[1001]);
+            fail("message too large expected");
+        }
+        catch (NSQException e) {
+            assertTrue(e.getMessage().startsWith("message too large"));
+        }
+    }
+
+    @Test
+    public void testWritesBuffersWithoutMovingPosition() throws Exception {
+        PubConnection con = newConnection();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        con.out = new DataOutputStream(bytes);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(20000);
+        for (int i = 0; i < direct.capacity(); i++) {
+            direct.put((byte) i);
+        }
+        direct.position(10);
+        con.pub("topic", direct);
+        assertEquals(10, direct.position());
+        con.pub("topic", ByteBuffer.wrap("xabcx".getBytes(), 1, 3));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals("PUB topic\n", readLine(in));
+        assertEquals(19990, in.readInt());
+        byte[] body = new byte[19990];
+        in.readFully(body);
+        assertEquals((byte) 10, body[0]);
+        assertEquals((byte) 19999, body[19989]);
+        assertEquals("PUB topic\n", readLine(in));
+        assertEquals(3, in.readInt());
+        byte[] slice = new byte[3];
+        in.readFully(slice);
+        assertEquals("abc", new String(slice));
+    }
+
+    @Test
+    public void testStreamsBody() throws Exception {
+        PubConnection con = newConnection();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        con.out = new DataOutputStream(bytes);
+        byte[] data = new byte[50000];
+        new Random(1).nextBytes(data);
+
+        File file = File.createTempFile("nsq-stream", "");
+        try {
+            FileOutputStream fileOut = new FileOutputStream(file);
+            fileOut.write(data);
+            fileOut.close();
+            con.pub("topic", new ByteArrayInputStream(data), data.length);
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                con.pub("topic", raf.getChannel(), 100, 20000);
+                assertEquals(0, raf.getChannel().position());
+            }
+            finally {
+                raf.close();
+            }
+        }
+        finally {
+            file.delete();
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals("PUB topic\n", readLine(in));
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        assertArrayEquals(data, body);
+        assertEquals("PUB topic\n", readLine(in));
+        body = new byte[in.readInt()];
+        in.readFully(body);
+        assertArrayEquals(Arrays.copyOfRange(data, 100, 20100), body);
+    }
+
+    @Test
+    public void testShortStreamClosesConnection() throws Exception {
+        PubConnection con = newConnection();
+        PublishFuture before = con.pub("topic", "a".getBytes());
+        try {
+            con.pub("topic", new ByteArrayInputStream(new byte[10]), 20);
+            fail("stream ended early");
+        }
+        catch (EOFException expected) {
+        }
+        assertTrue(before.isDone());
+        assertNotNull(before.getError());
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        char c;
+        do {
+            c = (char) in.readByte();
+            line.append(c);
+        } while (c != '\n');
+        return line.toString();
+    }
+
+}
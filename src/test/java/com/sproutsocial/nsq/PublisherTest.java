@@ -0,0 +1,239 @@
+package com.sproutsocial.nsq;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.Assert.*;
+
+public class PublisherTest {
+
+    private Client client;
+    private Publisher publisher;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close(); //nothing listening, connections are refused
+        client = new Client();
+        publisher = new Publisher(client, "localhost:" + port, null);
+        publisher.setReconnectBackoff(60000, 60000);
+    }
+
+    @After
+    public void tearDown() {
+        client.stop();
+    }
+
+    @Test
+    public void testFailsFastWhileReconnecting() {
+        long start = Util.clock();
+        for (int i = 0; i < 3; i++) {
+            try {
+                publisher.publish("topic", "msg".getBytes());
+                fail("publish should fail");
+            }
+            catch (NSQException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("nsqd unavailable"));
+            }
+        }
+        assertTrue(Util.clock() - start < 5000);
+    }
+
+    @Test
+    public void testReconnectsOnceBeforeFailing() throws Exception {
+        FakeNsqd nsqd = new FakeNsqd();
+        Publisher restartedPublisher = new Publisher(client, nsqd.getHost(), null);
+        try {
+            restartedPublisher.setReconnectBackoff(60000, 60000);
+            PubConnection dropped = newConnection(restartedPublisher, "localhost");
+            Whitebox.setInternalState(restartedPublisher, "con", dropped);
+            restartedPublisher.publishFailover(dropped, "topic", "msg".getBytes());
+            assertEquals(Arrays.asList("msg"), nsqd.getMessages());
+            assertFalse("reconnected without probing", (Boolean) Whitebox.getInternalState(restartedPublisher, "isProbing"));
+        }
+        finally {
+            restartedPublisher.stop();
+            nsqd.close();
+        }
+    }
+
+    @Test
+    public void testRetriesOnlyFailedSplits() throws Exception {
+        FakeNsqd nsqd = new FakeNsqd();
+        nsqd.addResponse("OK");
+        nsqd.addResponse("CLOSE");
+        Publisher splitPublisher = new Publisher(client, nsqd.getHost(), null);
+        try {
+            splitPublisher.setReconnectBackoff(60000, 60000);
+            splitPublisher.setMaxBodySize(12); //one message per MPUB
+            splitPublisher.publish("topic", Arrays.asList("a".getBytes(), "b".getBytes(), "c".getBytes()));
+            assertEquals("the first MPUB is not published twice", Arrays.asList("a", "b", "c"), nsqd.getMessages());
+        }
+        finally {
+            splitPublisher.stop();
+            nsqd.close();
+        }
+    }
+
+    @Test
+    public void testSpoolsWhileUnavailable() throws Exception {
+        File dir = File.createTempFile("nsq-spool", "");
+        assertTrue(dir.delete());
+        try {
+            publisher.setSpool(dir, 1024 * 1024);
+            publisher.publish("topic", "a".getBytes());
+            publisher.publish("topic", "b".getBytes());
+            assertEquals(2, publisher.getSpool().getMessageCount());
+        }
+        finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testRejectedMessagesAreNotSpooled() throws Exception {
+        File dir = File.createTempFile("nsq-spool", "");
+        assertTrue(dir.delete());
+        Spool previousRun = new Spool(dir, 1024 * 1024);
+        previousRun.append("bad", "a".getBytes());
+        previousRun.append("bad", "b".getBytes());
+        previousRun.append("good", "c".getBytes());
+        FakeNsqd nsqd = new FakeNsqd();
+        nsqd.addResponse("E_BAD_TOPIC MPUB topic name \"bad\" is not valid");
+        Publisher spoolPublisher = new Publisher(client, nsqd.getHost(), null);
+        try {
+            spoolPublisher.setSpool(dir, 1024 * 1024);
+            Spool spool = spoolPublisher.getSpool();
+            for (int i = 0; i < 100 && !spool.isEmpty(); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue("replay continues past the rejected batch", spool.isEmpty());
+            assertEquals(2, spool.getRejectedCount());
+            assertEquals(Arrays.asList("c"), nsqd.getMessages());
+            assertEquals(1, dir.listFiles(new FilenameFilter() {
+                public boolean accept(File d, String name) {
+                    return name.endsWith(".rejected");
+                }
+            }).length);
+
+            nsqd.addResponse("E_BAD_MESSAGE PUB message too big 7 > 5");
+            try {
+                spoolPublisher.publish("topic", "too big".getBytes());
+                fail("nsqd rejected the message");
+            }
+            catch (NSQException e) {
+                assertTrue(Publisher.isRejected(e));
+            }
+            assertTrue(spool.isEmpty());
+        }
+        finally {
+            spoolPublisher.stop();
+            nsqd.close();
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testFailoverToStandby() throws Exception {
+        final Publisher failoverPublisher = new Publisher(client, "localhost:" + port, "localhost:" + port);
+        failoverPublisher.setReconnectBackoff(60000, 60000);
+        final PubConnection primary = newConnection(failoverPublisher, "primary");
+        PubConnection standby = newConnection(failoverPublisher, "standby");
+        Whitebox.setInternalState(failoverPublisher, "con", primary);
+        Whitebox.setInternalState(failoverPublisher, "standby", standby);
+
+        Thread publishThread = new Thread() {
+            public void run() {
+                failoverPublisher.publishFailover(primary, "topic", "msg".getBytes());
+            }
+        };
+        publishThread.start();
+        while (standby.getPendingCount() == 0) {
+            Thread.sleep(1);
+        }
+        standby.onResponse("OK");
+        publishThread.join(5000);
+        assertFalse(publishThread.isAlive());
+        assertSame(standby, failoverPublisher.getConnection());
+    }
+
+    @Test
+    public void testTopicLanes() throws Exception {
+        PubConnection main = newConnection(publisher, "localhost");
+        Whitebox.setInternalState(publisher, "con", main);
+        publisher.setTopicLanes(3);
+        AtomicReferenceArray<PubConnection> lanes = Whitebox.getInternalState(publisher, "lanes");
+        lanes.set(0, newConnection(publisher, "localhost"));
+        lanes.set(1, newConnection(publisher, "localhost"));
+
+        Set<PubConnection> used = new HashSet<PubConnection>();
+        for (int i = 0; i < 30; i++) {
+            String topic = "topic" + i;
+            PubConnection laneCon = publisher.getConnection(topic);
+            assertSame(laneCon, publisher.getConnection(topic));
+            used.add(laneCon);
+        }
+        assertEquals(3, used.size());
+        assertTrue(used.contains(main));
+
+        PubConnection closed = lanes.get(1);
+        publisher.connectionClosed(closed);
+        assertNull(lanes.get(1));
+        publisher.setTopicLanes(1);
+        assertSame(main, publisher.getConnection("topic"));
+    }
+
+    @Test
+    public void testFailedLaneIsReplacedNotMovedToMain() throws Exception {
+        PubConnection main = new PubConnection(client, HostAndPort.fromParts("localhost", port), publisher);
+        ByteArrayOutputStream mainOut = new ByteArrayOutputStream();
+        main.out = new DataOutputStream(mainOut);
+        Whitebox.setInternalState(publisher, "con", main);
+        publisher.setTopicLanes(2);
+        AtomicReferenceArray<PubConnection> lanes = Whitebox.getInternalState(publisher, "lanes");
+        PubConnection lane = newConnection(publisher, "localhost");
+        lanes.set(0, lane);
+        String topic = "topic0";
+        for (int i = 1; publisher.getConnection(topic) != lane; i++) {
+            topic = "topic" + i;
+        }
+        try {
+            //the new lane can't connect either, so the main connection fails over instead of taking the topic
+            publisher.publishFailover(lane, topic, "a".getBytes());
+            fail("nsqd is down and there is no failover");
+        }
+        catch (NSQException e) {
+            //expected
+        }
+        assertEquals(0, mainOut.size());
+        assertNull(lanes.get(0));
+        assertNull(Whitebox.getInternalState(publisher, "con"));
+    }
+
+    private PubConnection newConnection(Publisher pub, String host) {
+        PubConnection con = new PubConnection(client, HostAndPort.fromParts(host, 4150), pub);
+        con.out = new DataOutputStream(new ByteArrayOutputStream());
+        return con;
+    }
+
+}
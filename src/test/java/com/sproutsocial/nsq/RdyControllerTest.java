@@ -0,0 +1,70 @@
+package com.sproutsocial.nsq;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RdyControllerTest {
+
+    private Client client;
+    private Subscription sub;
+
+    @Before
+    public void setUp() {
+        client = new Client();
+        sub = new Subscription(client, "topic", "channel", null, new Subscriber(client, 30, 5), 20);
+    }
+
+    @After
+    public void tearDown() {
+        client.stop();
+    }
+
+    @Test
+    public void testAdditiveIncreaseMultiplicativeDecrease() {
+        RdyController controller = new RdyController(sub, 10, 510, 50, 100);
+        controller.adjust();
+        assertEquals(20, sub.getMaxInFlight()); //idle
+
+        handle(controller, 5, 1);
+        controller.adjust();
+        assertEquals(30, sub.getMaxInFlight());
+        handle(controller, 5, 1);
+        controller.adjust();
+        assertEquals(40, sub.getMaxInFlight());
+
+        handle(controller, 5, 1);
+        handle(controller, 1, 500); //average over the target
+        controller.adjust();
+        assertEquals(20, sub.getMaxInFlight());
+        handle(controller, 1, 500);
+        controller.adjust();
+        assertEquals(10, sub.getMaxInFlight()); //min
+        handle(controller, 1, 500);
+        controller.adjust();
+        assertEquals(10, sub.getMaxInFlight());
+    }
+
+    @Test
+    public void testStaysInBounds() {
+        sub.setMaxInFlight(1000);
+        RdyController controller = new RdyController(sub, 10, 100, 50, 100);
+        handle(controller, 5, 1);
+        controller.adjust();
+        assertEquals(100, sub.getMaxInFlight());
+        sub.setMaxInFlight(1);
+        controller.adjust();
+        assertEquals(10, sub.getMaxInFlight());
+    }
+
+    private static void handle(RdyController controller, int count, long millis) {
+        for (int i = 0; i < count; i++) {
+            controller.handled(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+
+}
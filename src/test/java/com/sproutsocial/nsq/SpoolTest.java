@@ -0,0 +1,93 @@
+package com.sproutsocial.nsq;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SpoolTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("nsq-spool", "");
+        assertTrue(dir.delete());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testBatchesByTopic() throws Exception {
+        Spool spool = new Spool(dir, 1024 * 1024);
+        assertTrue(spool.isEmpty());
+        spool.append("a", "a1".getBytes());
+        spool.append("a", "a2".getBytes());
+        spool.append("b", "b1".getBytes());
+        assertEquals(3, spool.getMessageCount());
+
+        Spool.Batch batch = spool.nextBatch(1000);
+        assertEquals("a", batch.getTopic());
+        assertEquals(2, batch.getMessages().size());
+        assertEquals("a2", new String(batch.getMessages().get(1)));
+        assertEquals(2, spool.nextBatch(1000).getMessages().size()); //same batch until committed
+        spool.commit(batch);
+
+        batch = spool.nextBatch(1000);
+        assertEquals("b", batch.getTopic());
+        assertEquals("b1", new String(batch.getMessages().get(0)));
+        spool.commit(batch);
+        assertNull(spool.nextBatch(1000));
+        assertTrue(spool.isEmpty());
+        assertEquals(0, spool.getByteCount());
+        assertEquals(3, spool.getReplayedCount());
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        Spool spool = new Spool(dir, 1024 * 1024);
+        for (int i = 0; i < 5; i++) {
+            spool.append("topic", ("msg" + i).getBytes());
+        }
+        spool.commit(spool.nextBatch(5)); //first two messages, a batch can go one message over
+
+        Spool recovered = new Spool(dir, 1024 * 1024);
+        assertEquals(3, recovered.getMessageCount());
+        Spool.Batch batch = recovered.nextBatch(1000);
+        assertEquals(3, batch.getMessages().size());
+        assertEquals("msg2", new String(batch.getMessages().get(0)));
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        Spool spool = new Spool(dir, 1000);
+        int count = 0;
+        try {
+            while (count < 1000) {
+                spool.append("topic", new byte[100]);
+                count++;
+            }
+            fail("spool should fill");
+        }
+        catch (NSQException e) {
+            assertTrue(e.getMessage().startsWith("spool full"));
+        }
+        assertEquals(count, spool.getMessageCount());
+        spool.commit(spool.nextBatch(10000));
+        spool.append("topic", new byte[100]);
+    }
+
+}
@@ -0,0 +1,272 @@
+package com.sproutsocial.nsq;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.powermock.reflect.Whitebox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SubConnectionTest {
+
+    private Client client;
+    private SubConnection con;
+    private FlushRecorder recorder;
+
+    @Before
+    public void setUp() {
+        client = new Client();
+        client.setExecutor(new DiscardExecutor());
+        Subscriber subscriber = Mockito.mock(Subscriber.class);
+        Mockito.when(subscriber.getMaxAttempts()).thenReturn(5);
+        Mockito.when(subscriber.getMaxFlushDelayMillis()).thenReturn(2000);
+        Subscription subscription = Mockito.mock(Subscription.class);
+        Mockito.when(subscription.getSubscriber()).thenReturn(subscriber);
+        Mockito.when(subscription.getTopic()).thenReturn("topic");
+        Mockito.when(subscription.getChannel()).thenReturn("channel");
+        con = new SubConnection(client, HostAndPort.fromParts("localhost", 4150), subscription);
+        recorder = new FlushRecorder();
+        con.out = new DataOutputStream(recorder);
+    }
+
+    @After
+    public void tearDown() {
+        client.stop();
+    }
+
+    @Test
+    public void testFinishFlushesOnAckWriter() throws Exception {
+        con.setMaxInFlight(1); //no acks are held back
+        recorder.threads.clear();
+        ByteBuffer id = ByteBuffer.wrap("0123456789abcdef".getBytes(Util.US_ASCII));
+        con.finish(id.getLong(), id.getLong());
+        for (int i = 0; i < 100 && recorder.threads.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, recorder.threads.size());
+        assertTrue(recorder.threads.get(0), recorder.threads.get(0).startsWith("nsq-ack"));
+        assertEquals("FIN 0123456789abcdef\n", new String(recorder.toByteArray(), Util.US_ASCII).substring(6)); //after RDY 1\n
+    }
+
+    @Test
+    public void testEncodesCommands() throws Exception {
+        con.setMaxInFlight(2500);
+        ByteBuffer id = ByteBuffer.wrap("0a1b2c3d4e5f6a7b".getBytes(Util.US_ASCII));
+        long idHigh = id.getLong();
+        long idLow = id.getLong();
+        con.touch(idHigh, idLow);
+        con.requeue(idHigh, idLow, 1500);
+        con.requeue(idHigh, idLow);
+        con.finish(idHigh, idLow);
+        assertEquals("RDY 2500\n", new String(recorder.toByteArray(), Util.US_ASCII)); //acks are queued
+        con.drainAcksAndFlush();
+        assertEquals("RDY 2500\nTOUCH 0a1b2c3d4e5f6a7b\nREQ 0a1b2c3d4e5f6a7b 1500\nREQ 0a1b2c3d4e5f6a7b 0\nFIN 0a1b2c3d4e5f6a7b\n",
+                new String(recorder.toByteArray(), Util.US_ASCII));
+    }
+
+    @Test
+    public void testBatchAcks() throws Exception {
+        con.setMaxInFlight(2500);
+        recorder.reset();
+        recorder.threads.clear();
+        con.finish(0x3030303030303030L, 0x3030303030303030L); //queued before the batch
+        List<Message> batch = new ArrayList<Message>();
+        for (long i = 1; i <= 3; i++) {
+            batch.add(new NSQMessage(0, 1, 0x3030303030303030L, 0x3030303030303030L + i, new byte[0], "topic", con));
+        }
+        Messages.finishAll(batch.subList(0, 2));
+        Messages.requeueAll(batch.subList(2, 3), 100);
+        assertEquals("FIN 0000000000000000\nFIN 0000000000000001\nFIN 0000000000000002\nREQ 0000000000000003 100\n",
+                new String(recorder.toByteArray(), Util.US_ASCII));
+        assertEquals("one flush per batch", 2, recorder.threads.size());
+    }
+
+    @Test
+    public void testConcurrentAcksWrittenOnce() throws Exception {
+        con.setMaxInFlight(2500);
+        final int perThread = 5000; //more than the queue holds, so handler threads also drain
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int threadNum = t;
+            threads.add(new Thread() {
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        con.finish(threadNum, i);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        con.drainAcksAndFlush();
+
+        ByteBuffer written = ByteBuffer.wrap(recorder.toByteArray());
+        written.position("RDY 2500\n".length());
+        long[] next = new long[8];
+        int count = 0;
+        while (written.hasRemaining()) {
+            written.position(written.position() + 4); //FIN and space
+            int threadNum = (int) written.getLong();
+            assertEquals("acks from one thread stay in order", next[threadNum]++, written.getLong());
+            assertEquals('\n', written.get());
+            count++;
+        }
+        assertEquals(8 * perThread, count);
+    }
+
+    @Test
+    public void testFinishDoesNotAllocate() throws Exception {
+        com.sun.management.ThreadMXBean allocations = allocationCounter();
+        con.out = new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        con.setMaxInFlight(2500);
+        int count = 100000;
+        for (int i = 0; i < 5; i++) { //warm up
+            finishAll(count);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        finishAll(count);
+        long perFinish = (allocations.getThreadAllocatedBytes(threadId) - before) / count;
+        assertTrue("bytes allocated per finish:" + perFinish, perFinish <= 2); //only the occasional flush task
+    }
+
+    private void finishAll(int count) {
+        for (int i = 0; i < count; i++) {
+            con.finish(i, i);
+        }
+    }
+
+    @Test
+    public void testDecodeAllocatesOnlyMessageAndBody() throws Exception {
+        com.sun.management.ThreadMXBean allocations = allocationCounter();
+        int count = 10000;
+        int bodySize = 100;
+        DataInputStream in = newFrames(count, bodySize);
+        for (int i = 0; i < 5; i++) { //warm up
+            readFrames(in, count);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        readFrames(in, count);
+        long perMessage = (allocations.getThreadAllocatedBytes(threadId) - before) / count;
+        //the body array (16 byte header) and the NSQMessage, no id byte[]/String or Runnable
+        assertTrue("bytes allocated per message:" + perMessage, perMessage <= bodySize + 16 + 64);
+    }
+
+    @Test
+    public void testPooledDecodeAllocatesOnlyMessage() throws Exception {
+        com.sun.management.ThreadMXBean allocations = allocationCounter();
+        Subscription subscription = Whitebox.getInternalState(con, "subscription");
+        Mockito.when(subscription.getSubscriber().getBodyPool()).thenReturn(new BodyPool());
+        con = new SubConnection(client, HostAndPort.fromParts("localhost", 4150), subscription);
+        int count = 10000;
+        DataInputStream in = newFrames(count, 1000);
+        for (int i = 0; i < 5; i++) { //warm up
+            readFrames(in, count);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        readFrames(in, count);
+        long perMessage = (allocations.getThreadAllocatedBytes(threadId) - before) / count;
+        assertTrue("bytes allocated per message:" + perMessage, perMessage <= 96); //the NSQMessage and sampled leak tracking
+    }
+
+    private static DataInputStream newFrames(int count, int bodySize) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream frames = new DataOutputStream(bytes);
+        for (int i = 0; i < count; i++) {
+            frames.writeInt(30 + bodySize);
+            frames.writeInt(2);
+            frames.writeLong(System.nanoTime());
+            frames.writeShort(1);
+            frames.write(String.format("%016x", i).getBytes(Util.US_ASCII));
+            frames.write(new byte[bodySize]);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        in.mark(Integer.MAX_VALUE);
+        return in;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+        return allocations;
+    }
+
+    private void readFrames(DataInputStream in, int count) throws IOException {
+        in.reset();
+        for (int i = 0; i < count; i++) {
+            con.readFrame(in, in.readInt());
+        }
+    }
+
+    //drops messages instead of handling them, releasing pooled bodies
+    private static class DiscardExecutor extends AbstractExecutorService {
+        public void execute(Runnable command) {
+            if (command instanceof NSQMessage) {
+                ((NSQMessage) command).release();
+            }
+        }
+
+        public void shutdown() {
+        }
+
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        public boolean isShutdown() {
+            return false;
+        }
+
+        public boolean isTerminated() {
+            return true;
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+
+    private static class FlushRecorder extends ByteArrayOutputStream {
+        private final List<String> threads = new CopyOnWriteArrayList<String>();
+
+        @Override
+        public void flush() {
+            threads.add(Thread.currentThread().getName());
+        }
+    }
+
+}
@@ -113,6 +113,27 @@ public class SubscriptionTest {
         return activeSet;
     }
 
+    @Test
+    public void testDistributeByArrivalRate() throws Exception {
+        Client client = new Client();
+        Subscriber subscriber = new Subscriber(client, 30, 5);
+        Subscription sub = new Subscription(client, "topic", "channel", null, subscriber, 200);
+        checkHosts(sub, 3);
+        Map<HostAndPort, SubConnection> conMap = Whitebox.getInternalState(sub, "connectionMap");
+        List<SubConnection> cons = new ArrayList<SubConnection>(conMap.values());
+        long[] received = {0, 1000, 3000}; //0, 200 and 600 per second
+        for (int i = 0; i < cons.size(); i++) {
+            cons.get(i).out = Mockito.mock(DataOutputStream.class);
+            Whitebox.setInternalState(cons.get(i), "receivedCount", received[i]);
+        }
+        Whitebox.invokeMethod(sub, "rebalance");
+        //1 each, then 197 split a quarter evenly and the rest by rate
+        assertEquals(18, cons.get(0).getMaxInFlight());
+        assertEquals(54, cons.get(1).getMaxInFlight());
+        assertEquals(128, cons.get(2).getMaxInFlight());
+        client.stop();
+    }
+
     @Test
     public void testLowFlight() throws Exception {
         Client client = new Client();